@@ -0,0 +1,24 @@
+#!/bin/sh
+# Builds an AppCDS archive (application class data sharing, JDK 13 or later) holding the fingerprinter's classes and
+# the JTransforms, Tritonus and mp3 decoder classes from lib/, so later launches map them in already parsed and
+# verified instead of loading them from the jars.
+#
+# Usage: scripts/appcds.sh [compiled classes directory]
+# Set JAVAFX to the JavaFX jars (e.g. /opt/javafx-sdk/lib/*) if your JDK does not bundle JavaFX.
+# Then:  java -XX:SharedArchiveFile=fingerprinter.jsa -cp "fingerprinter.jar:lib/*:$JAVAFX" \
+#            edu.macalester.comp124.audiofingerprinter.MainApp
+#
+# Class data sharing only archives classes from jars, so the compiled classes are packed into fingerprinter.jar first.
+# The archive is only used with the same JDK and the same classpath it was built with; rebuild it after either changes.
+
+cd "$(dirname "$0")/.." || exit 1
+CLASSES=${1:-out/production/124-hw7}
+CP="fingerprinter.jar:lib/*${JAVAFX:+:$JAVAFX}"
+
+jar cf fingerprinter.jar -C "$CLASSES" . || exit 1
+# The training run loads a synthetic catalog and runs queries, which loads every class on the recognition path.
+java -XX:ArchiveClassesAtExit=fingerprinter.jsa -cp "$CP" \
+    edu.macalester.comp124.audiofingerprinter.WarmupBenchmark warmup 20 50 || exit 1
+echo "Wrote fingerprinter.jsa. Compare startup with and without it:"
+echo "  java -XX:SharedArchiveFile=fingerprinter.jsa -cp \"$CP\" edu.macalester.comp124.audiofingerprinter.WarmupBenchmark cold"
+echo "  java -cp \"$CP\" edu.macalester.comp124.audiofingerprinter.WarmupBenchmark cold"
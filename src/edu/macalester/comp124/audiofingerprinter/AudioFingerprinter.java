@@ -35,6 +35,35 @@ public interface AudioFingerprinter {
      */
     List<String> recognize(File fileIn);
 
+    /**
+     * Given an array of raw 8 bit mono bytes at 44100 Hz representing a song, returns typed match results instead of formatted strings.
+     * Candidates are scored by the size of their best aligned offset bin; songs scoring below minScore are dropped
+     * and only the best maxResults are kept while scoring, so no result objects are built for the long tail.
+     * @param audioData array of bytes representing a song
+     * @param maxResults maximum number of matches to return, or 0 for no limit
+     * @param minScore minimum number of aligned hashes a song needs to be returned
+     * @return matches sorted from most likely to least likely
+     */
+    List<SongMatch> recognizeMatches(byte[] audioData, int maxResults, int minScore);
+
+    /**
+     * Overloaded method given a file object to recognize with typed results.
+     * @param fileIn
+     * @param maxResults maximum number of matches to return, or 0 for no limit
+     * @param minScore minimum number of aligned hashes a song needs to be returned
+     * @return matches sorted from most likely to least likely
+     */
+    List<SongMatch> recognizeMatches(File fileIn, int maxResults, int minScore);
+
+    /**
+     * Recognizes audio that has already been decoded to mono samples at the song database's analysis rate.
+     * @param samples mono samples between -1 and 1
+     * @param maxResults maximum number of matches to return, or 0 for no limit
+     * @param minScore minimum number of aligned hashes a song needs to be returned
+     * @return matches sorted from most likely to least likely
+     */
+    List<SongMatch> recognizeMatches(float[] samples, int maxResults, int minScore);
+
     /**
      * Given a 2D array of frequency information over time, returns the keypoints.
      * @param results, an array of frequency data. The first index corresponds with a slice of time, the second with the frequency.
@@ -55,4 +84,12 @@ public interface AudioFingerprinter {
      * @return
      */
     long hash(long[] points);
+
+    /**
+     * Returns a low resolution hash of several keypoints, quantized much more coarsely than hash so that it still matches
+     * when some keypoints move a little. Used to cheaply shortlist candidate songs.
+     * @param points array of key points for a particular slice of time. Must be at least length 4.
+     * @return
+     */
+    long coarseHash(long[] points);
 }
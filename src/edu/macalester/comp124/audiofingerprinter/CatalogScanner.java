@@ -0,0 +1,232 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the audio files in a catalog. Nested directories are walked in parallel on a fork-join pool, one task per
+ * directory, and every file that passes the filters is handed to a sink as soon as it is found, so ingestion can start
+ * before the whole tree has been listed.
+ * A file passes if its extension is in the configured set and, when magic byte checking is on, its first bytes look like
+ * one of the formats AudioSystem can decode (mp3, wav, aiff or au).
+ * Symbolic links are followed, but every directory is listed only once per scan, so a link back to an ancestor does not
+ * make the walk loop. An entry that can't be read, such as a dangling link, is reported and skipped; its siblings are
+ * still scanned.
+ */
+public class CatalogScanner {
+
+    /**
+     * Receives the files found by the scanner. Called from several threads at once.
+     */
+    public interface Sink {
+        void accept(File file) throws InterruptedException;
+    }
+
+    private static final Set<String> DEFAULT_EXTENSIONS = new HashSet<>(Arrays.asList("mp3", "wav", "aif", "aiff", "aifc", "au"));
+
+    private final Set<String> extensions;
+    private final boolean checkMagicBytes;
+    private final int parallelism;
+
+    /**
+     * Constructor using the default extensions, magic byte checking and one thread per core.
+     */
+    public CatalogScanner() {
+        this(DEFAULT_EXTENSIONS, true, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     * @param extensions file extensions to accept, without the dot. Compared ignoring case.
+     * @param checkMagicBytes whether to also check the first bytes of each file
+     * @param parallelism number of threads walking directories
+     */
+    public CatalogScanner(Set<String> extensions, boolean checkMagicBytes, int parallelism) {
+        this.extensions = new HashSet<>();
+        for (String extension : extensions) {
+            this.extensions.add(extension.toLowerCase(Locale.ROOT));
+        }
+        this.checkMagicBytes = checkMagicBytes;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Walks the directory tree under root and passes each accepted file to the sink.
+     * @param root directory to search
+     * @param sink receives the accepted files
+     * @return the number of files accepted
+     * @throws InterruptedException if the sink was interrupted
+     */
+    public int scan(File root, Sink sink) throws InterruptedException {
+        if (!root.isDirectory()) {
+            return 0;
+        }
+        AtomicInteger found = new AtomicInteger();
+        Set<Object> visited = ConcurrentHashMap.newKeySet();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Path start = root.toPath();
+            visited.add(directoryKey(start, Files.readAttributes(start, BasicFileAttributes.class)));
+            pool.invoke(new DirectoryTask(start, sink, found, visited));
+        } catch (IOException e) {
+            System.out.println("Unable to read directory: " + root);
+        } catch (SinkInterrupted e) {
+            throw (InterruptedException) e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        return found.get();
+    }
+
+    /**
+     * Walks the directory tree under root and collects the accepted files.
+     * @param root directory to search
+     * @return accepted files, in no particular order
+     */
+    public List<File> list(File root) {
+        List<File> files = new ArrayList<>();
+        try {
+            scan(root, file -> {
+                synchronized (files) {
+                    files.add(file);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return files;
+    }
+
+    /**
+     * Returns whether a file passes the extension and magic byte filters.
+     * @param path of the file
+     * @return true if the file should be ingested
+     */
+    public boolean accepts(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || !extensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+        return !checkMagicBytes || hasAudioMagic(path);
+    }
+
+    private static boolean hasAudioMagic(Path path) {
+        byte[] header = new byte[12];
+        int read = 0;
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while (read < header.length && (n = in.read(header, read, header.length - read)) != -1) {
+                read += n;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        if (read >= 3 && header[0] == 'I' && header[1] == 'D' && header[2] == '3') {
+            return true; // mp3 with an id3 tag
+        }
+        if (read >= 2 && (header[0] & 0xff) == 0xff && (header[1] & 0xe0) == 0xe0) {
+            return true; // mp3 frame sync
+        }
+        if (read >= 12 && startsWith(header, "RIFF") && header[8] == 'W' && header[9] == 'A' && header[10] == 'V' && header[11] == 'E') {
+            return true;
+        }
+        if (read >= 12 && startsWith(header, "FORM") && header[8] == 'A' && header[9] == 'I' && header[10] == 'F') {
+            return true; // AIFF or AIFC
+        }
+        return read >= 4 && startsWith(header, ".snd");
+    }
+
+    /**
+     * Returns what identifies a directory however it is reached: its file key (device and inode on unix), or its real
+     * path where the file system has no file keys.
+     */
+    private static Object directoryKey(Path directory, BasicFileAttributes attributes) throws IOException {
+        Object key = attributes.fileKey();
+        return key != null ? key : directory.toRealPath();
+    }
+
+    private static boolean startsWith(byte[] header, String magic) {
+        for (int i = 0; i < magic.length(); i++) {
+            if (header[i] != magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lists one directory, forking a task for each subdirectory and sending accepted files to the sink.
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path directory;
+        private final Sink sink;
+        private final AtomicInteger found;
+        private final Set<Object> visited; // Keys of the directories already listed in this scan.
+
+        DirectoryTask(Path directory, Sink sink, AtomicInteger found, Set<Object> visited) {
+            this.directory = directory;
+            this.sink = sink;
+            this.found = found;
+            this.visited = visited;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                        if (attributes.isDirectory() && !visited.add(directoryKey(entry, attributes))) {
+                            continue; // Already listed, reached again through a link.
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Unable to read, continuing: " + entry);
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        DirectoryTask subtask = new DirectoryTask(entry, sink, found, visited);
+                        subtask.fork();
+                        subtasks.add(subtask);
+                    } else if (attributes.isRegularFile() && accepts(entry)) {
+                        found.incrementAndGet();
+                        sink.accept(entry.toFile());
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to read directory, continuing: " + directory);
+            } catch (InterruptedException e) {
+                throw new SinkInterrupted(e);
+            }
+            for (DirectoryTask subtask : subtasks) {
+                subtask.join();
+            }
+        }
+    }
+
+    private static class SinkInterrupted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SinkInterrupted(InterruptedException cause) {
+            super(cause);
+        }
+    }
+}
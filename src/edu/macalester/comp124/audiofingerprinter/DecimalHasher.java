@@ -0,0 +1,19 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+/**
+ * The original hash: the first four quantized key points are shifted into decimal places and added up. The fields
+ * overlap for larger key points, the fifth band is ignored, and the keys cluster, so this is kept mostly to compare
+ * against MixedHasher.
+ */
+public class DecimalHasher implements KeyPointHasher {
+
+    @Override
+    public long hash(long[] points, long quantization) {
+        if (points.length > 3)
+            return (points[3] - (points[3] % quantization)) * 100000000 + (points[2] - (points[2] % quantization)) //JUAN BILLION
+                    * 100000 + (points[1] - (points[1] % quantization)) * 100
+                    + (points[0] - (points[0] % quantization));
+        else
+            return -1;
+    }
+}
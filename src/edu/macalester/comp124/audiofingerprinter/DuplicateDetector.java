@@ -0,0 +1,463 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds songs in the catalog that are copies of the same recording, such as remasters, compilation tracks and
+ * re-encodes, by joining the index with itself. Two postings of the same hash, at time ta in song a and time tb in song
+ * b, vote for the pair (a, b) at offset tb - ta. Copies share most of their hashes at one offset, so their votes pile up
+ * in one narrow cluster of offsets, while unrelated songs only share scattered hashes. A pair is a duplicate if its best
+ * cluster of three neighbouring offsets holds at least minMatches votes and at least minFraction of the postings of the
+ * shorter song.
+ *
+ * The join runs over the posting lists in parallel, by hash bucket. To bound memory, it only counts votes whose first
+ * song is in the current batch of songsPerBatch songs and scans the index once per batch. Posting lists longer than
+ * maxPostingLength are skipped: they hold hashes common to many songs, which cost quadratic work and say little.
+ * Duplicates are grouped into clusters with a union-find that also tracks each song's time shift relative to the others,
+ * so a cluster can be merged into its canonical song, the member with the most postings.
+ */
+public class DuplicateDetector {
+
+    private static final int SONG_BITS = 21; // Vote keys pack two song ids and an offset into one long.
+    private static final int OFFSET_BITS = 64 - 2 * SONG_BITS;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final int MAX_OFFSET = (1 << (OFFSET_BITS - 1)) - 1;
+
+    private final SongDatabase db;
+    private final int songsPerBatch;
+    private final int minMatches;
+    private final double minFraction;
+    private final int maxPostingLength;
+    private int[] postingsPerSong;
+    private long skippedLists;
+
+    /**
+     * Constructor with default settings: batches of 1000 songs, at least 20 aligned hashes covering 20% of the shorter
+     * song, and posting lists of up to 1000 postings.
+     * @param db in-memory database to search
+     */
+    public DuplicateDetector(SongDatabase db) {
+        this(db, 1000, 20, 0.2, 1000);
+    }
+
+    /**
+     * Constructor.
+     * @param db in-memory database to search
+     * @param songsPerBatch number of songs whose votes are held in memory at once
+     * @param minMatches least number of aligned hashes a duplicate pair shares
+     * @param minFraction least share of the shorter song's postings that must align
+     * @param maxPostingLength longest posting list joined
+     * @throws IllegalArgumentException if the database is segmented, since its postings can't be joined in memory
+     */
+    public DuplicateDetector(SongDatabase db, int songsPerBatch, int minMatches, double minFraction, int maxPostingLength) {
+        if (db.isSegmented()) {
+            throw new IllegalArgumentException("Duplicate detection needs an in-memory index, not a segmented one");
+        }
+        this.db = db;
+        this.songsPerBatch = songsPerBatch;
+        this.minMatches = minMatches;
+        this.minFraction = minFraction;
+        this.maxPostingLength = maxPostingLength;
+    }
+
+    /**
+     * A group of songs that are copies of the same recording.
+     */
+    public static class Cluster {
+        private final int canonical;
+        private final int[] songIds;
+        private final int[] timeShifts;
+
+        /**
+         * Constructor.
+         * @param canonical id of the song the others would be merged into
+         * @param songIds ids of all songs in the cluster, including the canonical one
+         * @param timeShifts for each song, time in the canonical song minus time in that song
+         */
+        public Cluster(int canonical, int[] songIds, int[] timeShifts) {
+            this.canonical = canonical;
+            this.songIds = songIds;
+            this.timeShifts = timeShifts;
+        }
+
+        public int getCanonical() {
+            return canonical;
+        }
+
+        public int[] getSongIds() {
+            return songIds;
+        }
+
+        public int[] getTimeShifts() {
+            return timeShifts;
+        }
+    }
+
+    /**
+     * Joins the index with itself and groups the duplicate pairs it finds.
+     * @return clusters of two or more songs, largest first
+     */
+    public List<Cluster> findClusters() {
+        int songCount = db.getSongCount();
+        if (songCount >= 1 << SONG_BITS) {
+            throw new IllegalStateException("Too many songs for duplicate detection: " + songCount);
+        }
+        AtomicIntegerArray lengths = new AtomicIntegerArray(songCount);
+        LongAdder skipped = new LongAdder();
+        db.forEachPostingListParallel((hash, points) -> {
+            for (DataPoint d : points) {
+                lengths.incrementAndGet(d.getSongId());
+            }
+            if (points.size() > maxPostingLength) {
+                skipped.increment();
+            }
+        });
+        postingsPerSong = new int[songCount];
+        for (int s = 0; s < songCount; s++) {
+            postingsPerSong[s] = lengths.get(s);
+        }
+        skippedLists = skipped.sum();
+
+        int[] parent = new int[songCount];
+        int[] shift = new int[songCount]; // Time in the parent minus time in the song.
+        int[] size = new int[songCount];
+        for (int s = 0; s < songCount; s++) {
+            parent[s] = s;
+            size[s] = 1;
+        }
+        for (int lo = 0; lo < songCount; lo += songsPerBatch) {
+            int hi = Math.min(songCount, lo + songsPerBatch);
+            for (Map.Entry<Long, int[]> pair : alignedPairs(lo, hi).entrySet()) {
+                int a = (int) (pair.getKey() >>> SONG_BITS);
+                int b = (int) (pair.getKey() & ((1 << SONG_BITS) - 1));
+                int votes = pair.getValue()[0];
+                if (votes >= minFraction * Math.min(postingsPerSong[a], postingsPerSong[b])) {
+                    union(parent, shift, size, a, b, pair.getValue()[1]);
+                }
+            }
+        }
+
+        Map<Integer, List<Integer>> members = new HashMap<>();
+        for (int s = 0; s < songCount; s++) {
+            members.computeIfAbsent(find(parent, shift, s), r -> new ArrayList<>()).add(s);
+        }
+        List<Cluster> clusters = new ArrayList<>();
+        for (List<Integer> group : members.values()) {
+            if (group.size() < 2) {
+                continue;
+            }
+            int canonical = group.get(0);
+            for (int s : group) {
+                if (postingsPerSong[s] > postingsPerSong[canonical]) {
+                    canonical = s;
+                }
+            }
+            int[] songIds = new int[group.size()];
+            int[] timeShifts = new int[group.size()];
+            for (int i = 0; i < songIds.length; i++) {
+                songIds[i] = group.get(i);
+                timeShifts[i] = shift[songIds[i]] - shift[canonical];
+            }
+            clusters.add(new Cluster(canonical, songIds, timeShifts));
+        }
+        clusters.sort((x, y) -> Integer.compare(y.getSongIds().length, x.getSongIds().length));
+        return clusters;
+    }
+
+    /**
+     * Counts the votes of every pair whose first song is in [lo, hi) and returns the pairs with enough aligned votes.
+     * @return best offset cluster by pair key (song a, song b): {votes, offset tb - ta}
+     */
+    private Map<Long, int[]> alignedPairs(int lo, int hi) {
+        ConcurrentLinkedQueue<PairVotes> all = new ConcurrentLinkedQueue<>();
+        ThreadLocal<PairVotes> local = ThreadLocal.withInitial(() -> {
+            PairVotes votes = new PairVotes();
+            all.add(votes);
+            return votes;
+        });
+        db.forEachPostingListParallel((hash, points) -> {
+            int n = points.size();
+            if (n < 2 || n > maxPostingLength) {
+                return;
+            }
+            PairVotes votes = null;
+            for (int i = 0; i < n; i++) {
+                DataPoint a = points.get(i);
+                if (a.getSongId() < lo || a.getSongId() >= hi) {
+                    continue;
+                }
+                for (int j = 0; j < n; j++) {
+                    DataPoint b = points.get(j);
+                    int offset = b.getTime() - a.getTime();
+                    if (b.getSongId() > a.getSongId() && Math.abs(offset) <= MAX_OFFSET) {
+                        if (votes == null) {
+                            votes = local.get();
+                        }
+                        votes.add(key(a.getSongId(), b.getSongId(), offset), 1);
+                    }
+                }
+            }
+        });
+
+        PairVotes total = null;
+        for (PairVotes votes : all) {
+            if (total == null) {
+                total = votes;
+            } else {
+                votes.forEach(total::add);
+            }
+        }
+        Map<Long, int[]> best = new HashMap<>();
+        if (total == null) {
+            return best;
+        }
+        PairVotes counts = total;
+        counts.forEach((key, count) -> {
+            int offset = offset(key);
+            long pair = key >>> OFFSET_BITS;
+            int cluster = count + counts.get(withOffset(key, offset - 1)) + counts.get(withOffset(key, offset + 1));
+            if (cluster < minMatches) {
+                return;
+            }
+            int[] current = best.get(pair);
+            if (current == null) {
+                best.put(pair, new int[]{cluster, offset});
+            } else if (cluster > current[0]) {
+                current[0] = cluster;
+                current[1] = offset;
+            }
+        });
+        return best;
+    }
+
+    /**
+     * Merges every cluster into its canonical song, see SongDatabase.mergeDuplicates.
+     * @param clusters as returned by findClusters
+     * @return number of postings removed from the index
+     */
+    public long merge(List<Cluster> clusters) {
+        int songCount = db.getSongCount();
+        int[] canonicalOf = new int[songCount];
+        int[] timeShifts = new int[songCount];
+        for (int s = 0; s < songCount; s++) {
+            canonicalOf[s] = s;
+        }
+        for (Cluster cluster : clusters) {
+            for (int i = 0; i < cluster.getSongIds().length; i++) {
+                canonicalOf[cluster.getSongIds()[i]] = cluster.getCanonical();
+                timeShifts[cluster.getSongIds()[i]] = cluster.getTimeShifts()[i];
+            }
+        }
+        return db.mergeDuplicates(canonicalOf, timeShifts);
+    }
+
+    /**
+     * Returns the number of posting lists the last findClusters skipped for being longer than maxPostingLength.
+     * @return skipped lists
+     */
+    public long getSkippedLists() {
+        return skippedLists;
+    }
+
+    /**
+     * Returns the number of postings of a song, as counted by the last findClusters.
+     * @param songId
+     * @return postings
+     */
+    public int getPostings(int songId) {
+        return postingsPerSong[songId];
+    }
+
+    private static long key(int a, int b, int offset) {
+        return ((long) a << (SONG_BITS + OFFSET_BITS)) | ((long) b << OFFSET_BITS) | (offset & OFFSET_MASK);
+    }
+
+    private static long withOffset(long key, int offset) {
+        return (key & ~OFFSET_MASK) | (offset & OFFSET_MASK);
+    }
+
+    private static int offset(long key) {
+        return (int) (key << (64 - OFFSET_BITS) >> (64 - OFFSET_BITS)); // Sign extends the offset field.
+    }
+
+    /**
+     * Returns the root of a song's group and points the song straight at it, so its shift becomes time in the root minus
+     * time in the song. Union by size keeps the recursion shallow.
+     */
+    private static int find(int[] parent, int[] shift, int s) {
+        int p = parent[s];
+        if (p == s) {
+            return s;
+        }
+        int root = find(parent, shift, p);
+        if (p != root) {
+            shift[s] += shift[p];
+            parent[s] = root;
+        }
+        return root;
+    }
+
+    /**
+     * Joins the groups of songs a and b, given that time t in a is time t + offset in b.
+     */
+    private static void union(int[] parent, int[] shift, int[] size, int a, int b, int offset) {
+        int rootA = find(parent, shift, a);
+        int rootB = find(parent, shift, b);
+        if (rootA == rootB) {
+            return;
+        }
+        int shiftA = rootA == a ? 0 : shift[a]; // Time in rootA minus time in a.
+        int shiftB = rootB == b ? 0 : shift[b];
+        // Time t in a is t + shiftA in rootA, and t + offset + shiftB in rootB.
+        if (size[rootA] < size[rootB]) {
+            parent[rootA] = rootB;
+            shift[rootA] = offset + shiftB - shiftA;
+            size[rootB] += size[rootA];
+        } else {
+            parent[rootB] = rootA;
+            shift[rootB] = shiftA - offset - shiftB;
+            size[rootA] += size[rootB];
+        }
+    }
+
+    /**
+     * Vote counts by packed (song a, song b, offset) key, in an open addressing table of primitives.
+     */
+    private static final class PairVotes {
+        private static final long EMPTY = -1; // Would need song b to equal song a, which never votes.
+
+        private long[] keys = new long[1 << 12];
+        private int[] counts = new int[1 << 12];
+        private int size;
+
+        PairVotes() {
+            Arrays.fill(keys, EMPTY);
+        }
+
+        void add(long key, int count) {
+            int slot = slot(keys, key);
+            if (keys[slot] == EMPTY) {
+                keys[slot] = key;
+                size++;
+            }
+            counts[slot] += count;
+            if (size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        int get(long key) {
+            int slot = slot(keys, key);
+            return keys[slot] == EMPTY ? 0 : counts[slot];
+        }
+
+        void forEach(KeyCount action) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    action.accept(keys[i], counts[i]);
+                }
+            }
+        }
+
+        private static int slot(long[] keys, long key) {
+            int mask = keys.length - 1;
+            int slot = (int) MixedHasher.mix(key) & mask;
+            while (keys[slot] != key && keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new int[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = slot(keys, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+    }
+
+    private interface KeyCount {
+        void accept(long key, int count);
+    }
+
+    /**
+     * Loads a catalog, reports its duplicate clusters and optionally merges them.
+     * @param args directory of songs, and optionally "merge" to fold duplicates into their canonical songs
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: DuplicateDetector <song directory> [merge]");
+            return;
+        }
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        db.loadDatabase(args[0]);
+        DuplicateDetector detector = new DuplicateDetector(db);
+        report(db, detector, args.length > 1 && args[1].equals("merge"));
+    }
+
+    /**
+     * Finds and prints the clusters, and if asked merges them and prints the index size and fan-out before and after.
+     * @param db database to search
+     * @param detector configured detector
+     * @param merge whether to merge the clusters
+     */
+    static void report(SongDatabase db, DuplicateDetector detector, boolean merge) {
+        long start = System.nanoTime();
+        List<Cluster> clusters = detector.findClusters();
+        System.out.printf("Found %d duplicate clusters among %d songs in %.2fs (%d long posting lists skipped)%n",
+                clusters.size(), db.getSongCount(), (System.nanoTime() - start) / 1e9, detector.getSkippedLists());
+        for (Cluster cluster : clusters) {
+            System.out.println("* " + db.getSongName(cluster.getCanonical()));
+            for (int i = 0; i < cluster.getSongIds().length; i++) {
+                int songId = cluster.getSongIds()[i];
+                if (songId != cluster.getCanonical()) {
+                    System.out.printf("    %s (shift %+.2fs, %d postings)%n", db.getSongName(songId),
+                            cluster.getTimeShifts()[i] * db.getSecondsPerChunk(), detector.getPostings(songId));
+                }
+            }
+        }
+        if (!merge) {
+            return;
+        }
+        String before = indexStats(db);
+        long removed = detector.merge(clusters);
+        System.out.println("before merge: " + before);
+        System.out.println("after merge:  " + indexStats(db) + ", " + removed + " postings removed");
+    }
+
+    /**
+     * Describes the index size and the fan-out a query slice sees: the length of, and number of songs in, the posting
+     * list it hits, averaged over postings.
+     */
+    private static String indexStats(SongDatabase db) {
+        LongAdder postings = new LongAdder();
+        LongAdder lengthWeighted = new LongAdder();
+        LongAdder songsWeighted = new LongAdder();
+        db.forEachPostingListParallel((hash, points) -> {
+            long n = points.size();
+            long songs = points.stream().mapToInt(DataPoint::getSongId).distinct().count();
+            postings.add(n);
+            lengthWeighted.add(n * n);
+            songsWeighted.add(n * songs);
+        });
+        double total = Math.max(1, postings.sum());
+        return String.format("postings=%d, postings per query slice=%.2f, songs per query slice=%.2f",
+                postings.sum(), lengthWeighted.sum() / total, songsWeighted.sum() / total);
+    }
+}
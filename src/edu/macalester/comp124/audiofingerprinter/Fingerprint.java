@@ -0,0 +1,48 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+/**
+ * The hashes of one piece of audio, indexed by time slice: the fine hashes used for offset scoring, and the coarse
+ * hashes used to shortlist candidate songs.
+ */
+public class Fingerprint {
+
+    private final long[] hashes;
+    private final long[] coarseHashes;
+
+    /**
+     * Constructor.
+     * @param hashes fine hash of each time slice
+     * @param coarseHashes coarse hash of each time slice. Must be the same length as hashes.
+     */
+    public Fingerprint(long[] hashes, long[] coarseHashes) {
+        if (hashes.length != coarseHashes.length) {
+            throw new IllegalArgumentException("Fine and coarse hashes must cover the same time slices");
+        }
+        this.hashes = hashes;
+        this.coarseHashes = coarseHashes;
+    }
+
+    /**
+     * Getter for the fine hashes.
+     * @return fine hash of each time slice
+     */
+    public long[] getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Getter for the coarse hashes.
+     * @return coarse hash of each time slice
+     */
+    public long[] getCoarseHashes() {
+        return coarseHashes;
+    }
+
+    /**
+     * Returns the number of time slices.
+     * @return length of the fingerprint
+     */
+    public int length() {
+        return hashes.length;
+    }
+}
@@ -0,0 +1,89 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fingerprints a catalog into one FingerprintFile per song without building an index, so the work can be spread over
+ * many processes or machines. Each worker process can take one shard of the catalog; the resulting files are loaded
+ * centrally with SongDatabase.importFingerprints.
+ * The output directory mirrors the catalog: a/b/song.mp3 is written to a/b/song.mp3.afp, so distinct songs never share
+ * a file. Songs are assigned to shards by their relative path with '/' separators, so every platform agrees on the
+ * shards.
+ */
+public class FingerprintExporter {
+
+    /**
+     * Runs the export.
+     * @param args audio directory, output directory, and optionally the number of threads (default one per core) and
+     *             the shard to process as index/count (default 0/1, i.e. everything)
+     * @throws Exception if the scan is interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: FingerprintExporter <audio directory> <output directory> [threads] [shard/shards]");
+            return;
+        }
+        File audioDirectory = new File(args[0]);
+        File outputDirectory = new File(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int shard = 0;
+        int shards = 1;
+        if (args.length > 3) {
+            String[] parts = args[3].split("/");
+            shard = Integer.parseInt(parts[0]);
+            shards = Integer.parseInt(parts[1]);
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            System.out.println("Unable to create " + outputDirectory);
+            return;
+        }
+
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        FingerprintSettings settings = db.getFingerprintSettings();
+        System.out.println("Fingerprinting with " + settings);
+        String root = audioDirectory.getAbsolutePath();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(threads * 2); // Keeps the scanner from queueing the whole catalog.
+        AtomicInteger written = new AtomicInteger();
+        int myShard = shard;
+        int shardCount = shards;
+        long start = System.nanoTime();
+        new CatalogScanner().scan(audioDirectory, file -> {
+            String relative = file.getAbsolutePath().substring(root.length() + 1).replace(File.separatorChar, '/');
+            if (Math.floorMod(relative.hashCode(), shardCount) != myShard) {
+                return;
+            }
+            inFlight.acquire();
+            workers.execute(() -> {
+                try {
+                    float[] samples = db.getSamples(file);
+                    if (samples != null) {
+                        Fingerprint fingerprint = db.fingerprint(samples);
+                        File out = new File(outputDirectory, relative + "." + FingerprintFile.EXTENSION);
+                        File parent = out.getParentFile();
+                        if (!parent.mkdirs() && !parent.isDirectory()) {
+                            throw new IOException("Unable to create " + parent);
+                        }
+                        new FingerprintFile(file.getName(), settings, fingerprint).write(out);
+                        written.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Unable to write fingerprint for " + file.getName() + ": " + e.getMessage());
+                } finally {
+                    inFlight.release();
+                }
+            });
+        });
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        System.out.printf("Wrote %d fingerprints to %s in %.1fs%n", written.get(), outputDirectory,
+                (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,182 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the precomputed fingerprint of one song, so fingerprinting can run in separate processes or on
+ * other machines and only the merge into an index has to happen in one place.
+ *
+ * File layout, big-endian:
+ *      - int magic "AFP1", int format version
+ *      - the FingerprintSettings the song was fingerprinted with: int analysis rate, hasher name (modified UTF-8),
+ *        long fine and long coarse quantization, boolean gated, double gate floor and double gate flatness
+ *      - song name (modified UTF-8), int number of time slices, int number of entries
+ *      - for every slice that has a hash: the gap in slices since the previous entry as a varint, the hash and the
+ *        coarse hash as longs
+ * Slices without a hash (NO_HASH) are left out of the stream.
+ */
+public class FingerprintFile {
+
+    /** Extension used for fingerprint files. */
+    public static final String EXTENSION = "afp";
+
+    /** Hash value of a time slice that should not be indexed. */
+    public static final long NO_HASH = -1;
+
+    private static final int MAGIC = 0x41465031; // "AFP1"
+    private static final int VERSION = 2; // Version 1 only recorded the analysis rate.
+
+    private final String songName;
+    private final FingerprintSettings settings;
+    private final Fingerprint fingerprint;
+
+    /**
+     * Constructor.
+     * @param songName name of the song
+     * @param settings the settings the song was fingerprinted with
+     * @param fingerprint the song's hashes
+     */
+    public FingerprintFile(String songName, FingerprintSettings settings, Fingerprint fingerprint) {
+        this.songName = songName;
+        this.settings = settings;
+        this.fingerprint = fingerprint;
+    }
+
+    public String getSongName() {
+        return songName;
+    }
+
+    public FingerprintSettings getSettings() {
+        return settings;
+    }
+
+    public Fingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Writes this fingerprint to a file. The data goes to a temporary file that is then renamed, so other processes never
+     * see a partly written fingerprint.
+     * @param file to write
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        long[] hashes = fingerprint.getHashes();
+        long[] coarseHashes = fingerprint.getCoarseHashes();
+        int entries = 0;
+        for (long h : hashes) {
+            if (h != NO_HASH) {
+                entries++;
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(settings.getAnalysisRate());
+            out.writeUTF(settings.getHasher());
+            out.writeLong(settings.getQuantization());
+            out.writeLong(settings.getCoarseQuantization());
+            out.writeBoolean(settings.isGated());
+            out.writeDouble(settings.getGateFloorDb());
+            out.writeDouble(settings.getGateMaxFlatness());
+            out.writeUTF(songName);
+            out.writeInt(hashes.length);
+            out.writeInt(entries);
+            int previous = -1;
+            for (int time = 0; time < hashes.length; time++) {
+                if (hashes[time] == NO_HASH) {
+                    continue;
+                }
+                writeVarInt(out, time - previous);
+                out.writeLong(hashes[time]);
+                out.writeLong(coarseHashes[time]);
+                previous = time;
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a fingerprint file.
+     * @param file to read
+     * @return the song name, settings and fingerprint
+     * @throws IOException if the file can't be read or is not a fingerprint file
+     */
+    public static FingerprintFile read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            FingerprintSettings settings = readHeader(in, file);
+            String songName = in.readUTF();
+            int slices = in.readInt();
+            int entries = in.readInt();
+            long[] hashes = new long[slices];
+            long[] coarseHashes = new long[slices];
+            Arrays.fill(hashes, NO_HASH);
+            Arrays.fill(coarseHashes, NO_HASH);
+            int time = -1;
+            for (int i = 0; i < entries; i++) {
+                time += readVarInt(in);
+                if (time >= slices) {
+                    throw new IOException("Corrupt fingerprint file: " + file);
+                }
+                hashes[time] = in.readLong();
+                coarseHashes[time] = in.readLong();
+            }
+            return new FingerprintFile(songName, settings, new Fingerprint(hashes, coarseHashes));
+        }
+    }
+
+    /**
+     * Reads only the settings a fingerprint file was made with, to check a set of files before reading their hashes.
+     * @param file to read
+     * @return the settings
+     * @throws IOException if the file can't be read or is not a fingerprint file
+     */
+    public static FingerprintSettings readSettings(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 512))) {
+            return readHeader(in, file);
+        }
+    }
+
+    private static FingerprintSettings readHeader(DataInputStream in, File file) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a fingerprint file: " + file);
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported fingerprint version " + version + ", export it again: " + file);
+        }
+        return new FingerprintSettings(in.readInt(), in.readUTF(), in.readLong(), in.readLong(), in.readBoolean(),
+                in.readDouble(), in.readDouble());
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
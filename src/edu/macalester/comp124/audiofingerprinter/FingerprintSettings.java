@@ -0,0 +1,105 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Everything that decides which hashes a song gets: the analysis rate, the hashing scheme and its fine and coarse
+ * quantization, and the frame gate. Fingerprints only match when they were made with equal settings, so fingerprint
+ * files record them and SongDatabase.importFingerprints refuses files made with other settings.
+ */
+public final class FingerprintSettings {
+
+    private final int analysisRate;
+    private final String hasher;
+    private final long quantization;
+    private final long coarseQuantization;
+    private final boolean gated;
+    private final double gateFloorDb;
+    private final double gateMaxFlatness;
+
+    /**
+     * Constructor.
+     * @param analysisRate sample rate in Hz songs are fingerprinted at
+     * @param hasher name of the hashing scheme, e.g. the KeyPointHasher class
+     * @param quantization frequency bins treated as one in the fine hashes
+     * @param coarseQuantization frequency bins treated as one in the coarse hashes
+     * @param gate the frame gate, or null if every slice is hashed
+     */
+    public FingerprintSettings(int analysisRate, String hasher, long quantization, long coarseQuantization, FrameGate gate) {
+        this(analysisRate, hasher, quantization, coarseQuantization, gate != null,
+                gate == null ? 0 : gate.getFloorDb(), gate == null ? 0 : gate.getMaxFlatness());
+    }
+
+    FingerprintSettings(int analysisRate, String hasher, long quantization, long coarseQuantization, boolean gated,
+                        double gateFloorDb, double gateMaxFlatness) {
+        this.analysisRate = analysisRate;
+        this.hasher = hasher;
+        this.quantization = quantization;
+        this.coarseQuantization = coarseQuantization;
+        this.gated = gated;
+        this.gateFloorDb = gated ? gateFloorDb : 0;
+        this.gateMaxFlatness = gated ? gateMaxFlatness : 0;
+    }
+
+    public int getAnalysisRate() {
+        return analysisRate;
+    }
+
+    public String getHasher() {
+        return hasher;
+    }
+
+    public long getQuantization() {
+        return quantization;
+    }
+
+    public long getCoarseQuantization() {
+        return coarseQuantization;
+    }
+
+    public boolean isGated() {
+        return gated;
+    }
+
+    public double getGateFloorDb() {
+        return gateFloorDb;
+    }
+
+    public double getGateMaxFlatness() {
+        return gateMaxFlatness;
+    }
+
+    /**
+     * Describes how these settings differ from others, for error messages.
+     * @param other settings to compare with
+     * @return the differences, or null if the settings are equal
+     */
+    public String describeDifference(FingerprintSettings other) {
+        return equals(other) ? null : this + " instead of " + other;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FingerprintSettings)) {
+            return false;
+        }
+        FingerprintSettings other = (FingerprintSettings) o;
+        return analysisRate == other.analysisRate && hasher.equals(other.hasher) && quantization == other.quantization
+                && coarseQuantization == other.coarseQuantization && gated == other.gated
+                && Double.compare(gateFloorDb, other.gateFloorDb) == 0
+                && Double.compare(gateMaxFlatness, other.gateMaxFlatness) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(analysisRate, hasher, quantization, coarseQuantization, gated, gateFloorDb, gateMaxFlatness);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d Hz, %s, quantization %d/%d, %s", analysisRate, hasher, quantization,
+                coarseQuantization, gated ? String.format(Locale.ROOT, "gate floor %.1f dB max flatness %.3f",
+                        gateFloorDb, gateMaxFlatness) : "no gate");
+    }
+}
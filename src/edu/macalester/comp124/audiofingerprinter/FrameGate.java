@@ -0,0 +1,163 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which time slices carry enough information to be hashed. Silence, fades and near silent passages give
+ * degenerate key points, mostly noise or all zeros, that many songs share, so indexing them only bloats posting lists
+ * and makes queries scan them. A slice is dropped if:
+ *      - its energy is below a fixed floor relative to full scale
+ *      - or its spectrum over the key point bins is flat, like noise: the spectral flatness, the geometric mean of the
+ *        bin powers divided by their arithmetic mean, is above a maximum. Tones give values near 0, white noise about 0.56.
+ * Dropped slices get the hash FingerprintFile.NO_HASH, which is neither indexed nor looked up.
+ * Both tests only look at the slice itself, never at the rest of the audio, so a slice of a song and the same slice in
+ * a clip of it are judged alike. A threshold relative to the loudest part of the audio would not be: a clip of a quiet
+ * passage would keep slices the whole song dropped.
+ *
+ * The gate changes every fingerprint, so songs must be queried with the gate they were loaded with and fingerprint
+ * files record it. It is off unless turned on. fromSystemProperties reads:
+ *      fingerprint.gate             "on" turns the gate on
+ *      fingerprint.gate.floorDb     energy floor in dB relative to full scale (default -60)
+ *      fingerprint.gate.maxFlatness largest spectral flatness kept (default 0.45)
+ */
+public class FrameGate {
+
+    private static final int LOWEST_BIN = 40; // Bins the key points are chosen from.
+    private static final int HIGHEST_BIN = 300;
+    private static final int LOG_GROUP = 8; // Bin powers multiplied before taking one log. Stays well inside double range.
+
+    private final double floorDb;
+    private final double maxFlatness;
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong quietFrames = new AtomicLong();
+    private final AtomicLong flatFrames = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param floorDb slices quieter than this, in dB relative to full scale, are dropped
+     * @param maxFlatness slices with a higher spectral flatness, between 0 and 1, are dropped
+     */
+    public FrameGate(double floorDb, double maxFlatness) {
+        this.floorDb = floorDb;
+        this.maxFlatness = maxFlatness;
+    }
+
+    /**
+     * Creates a gate configured by system properties, see the class comment.
+     * @return the gate, or null unless it is turned on
+     */
+    public static FrameGate fromSystemProperties() {
+        if (!"on".equals(System.getProperty("fingerprint.gate"))) {
+            return null;
+        }
+        return new FrameGate(Double.parseDouble(System.getProperty("fingerprint.gate.floorDb", "-60")),
+                Double.parseDouble(System.getProperty("fingerprint.gate.maxFlatness", "0.45")));
+    }
+
+    /**
+     * Decides which slices to keep.
+     * @param samples audio the spectrum was computed from
+     * @param spectrum frequency data as returned by SongDatabase.convertToFrequencyDomain
+     * @param chunkSize samples per slice
+     * @return for every slice, whether it should be hashed
+     */
+    public boolean[] keep(float[] samples, double[][] spectrum, int chunkSize) {
+        int n = spectrum.length;
+        boolean[] keep = new boolean[n];
+        int quiet = 0;
+        int flat = 0;
+        for (int t = 0; t < n; t++) {
+            double sum = 0;
+            for (int i = t * chunkSize, end = i + chunkSize; i < end; i++) {
+                sum += samples[i] * samples[i];
+            }
+            if (10 * Math.log10(sum / chunkSize + 1e-20) < floorDb) {
+                quiet++;
+            } else if (flatness(spectrum[t]) > maxFlatness) {
+                flat++;
+            } else {
+                keep[t] = true;
+            }
+        }
+        frames.addAndGet(n);
+        quietFrames.addAndGet(quiet);
+        flatFrames.addAndGet(flat);
+        return keep;
+    }
+
+    /**
+     * Returns the spectral flatness of the key point bins of one slice.
+     */
+    private static double flatness(double[] spectrum) {
+        int end = Math.min(HIGHEST_BIN, spectrum.length / 2);
+        double logSum = 0;
+        double sum = 0;
+        double product = 1;
+        for (int c = LOWEST_BIN; c < end; c++) {
+            double power = spectrum[2 * c] * spectrum[2 * c] + spectrum[2 * c + 1] * spectrum[2 * c + 1] + 1e-20;
+            sum += power;
+            product *= power;
+            if ((c - LOWEST_BIN) % LOG_GROUP == LOG_GROUP - 1) {
+                logSum += Math.log(product);
+                product = 1;
+            }
+        }
+        logSum += Math.log(product);
+        int bins = end - LOWEST_BIN;
+        return bins <= 0 ? 0 : Math.exp(logSum / bins) / (sum / bins);
+    }
+
+    /**
+     * Returns the energy floor.
+     * @return floor in dB relative to full scale
+     */
+    public double getFloorDb() {
+        return floorDb;
+    }
+
+    /**
+     * Returns the largest spectral flatness kept.
+     * @return flatness between 0 and 1
+     */
+    public double getMaxFlatness() {
+        return maxFlatness;
+    }
+
+    /**
+     * Returns the number of slices judged so far.
+     * @return slices
+     */
+    public long getFrames() {
+        return frames.get();
+    }
+
+    /**
+     * Returns the number of slices dropped for low energy so far.
+     * @return slices
+     */
+    public long getQuietFrames() {
+        return quietFrames.get();
+    }
+
+    /**
+     * Returns the number of slices dropped for a flat spectrum so far.
+     * @return slices
+     */
+    public long getFlatFrames() {
+        return flatFrames.get();
+    }
+
+    /**
+     * Resets the slice counters.
+     */
+    public void resetStats() {
+        frames.set(0);
+        quietFrames.set(0);
+        flatFrames.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FrameGate(floor=%.0fdB, maxFlatness=%.2f)", floorDb, maxFlatness);
+    }
+}
@@ -0,0 +1,103 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Shows what the frame gate does on a synthetic catalog whose songs have silent lead-ins and tails, fades, a near silent
+ * passage and a burst of noise. The same catalog is loaded and queried once without and once with the gate, and the
+ * report gives the slices dropped, the index size, the longest posting list, query latency, postings scanned and
+ * top 1 accuracy for clips from random positions, half of them with added noise. Early exit is off so every posting a query touches is counted.
+ */
+public class FrameGateReport {
+
+    private static final int SONG_SECONDS = 40;
+    private static final int CLIP_SECONDS = 8;
+
+    /**
+     * Runs the report.
+     * @param args optionally the number of songs (default 100) and queries (default 300)
+     */
+    public static void main(String[] args) {
+        int songCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int queryCount = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        FrameGate configured = FrameGate.fromSystemProperties();
+        FrameGate gate = configured != null ? configured : new FrameGate(-60, 0.45);
+        System.out.println("gate: " + gate);
+        run("no gate", null, songCount, queryCount);
+        run("gate", gate, songCount, queryCount);
+    }
+
+    private static void run(String label, FrameGate gate, int songCount, int queryCount) {
+        SongDatabase db = new SongDatabase();
+        db.setFrameGate(gate);
+        SongFingerprint rec = new SongFingerprint(db);
+        db.setFingerprinter(rec);
+        rec.setEarlyExit(false); // Count every posting a query touches.
+        int rate = db.getAnalysisRate();
+        float[][] songs = new float[songCount][];
+        for (int s = 0; s < songCount; s++) {
+            songs[s] = song(s, rate);
+            db.addSong("song" + s, db.fingerprint(songs[s]));
+        }
+        long[] postings = new long[2]; // total, longest list
+        db.forEachPostingList((hash, points) -> {
+            postings[0] += points.size();
+            postings[1] = Math.max(postings[1], points.size());
+        });
+        long ingestFrames = gate == null ? 0 : gate.getFrames();
+        long ingestQuiet = gate == null ? 0 : gate.getQuietFrames();
+        long ingestFlat = gate == null ? 0 : gate.getFlatFrames();
+
+        Random random = new Random(7);
+        int correct = 0;
+        double[] latencies = new double[queryCount];
+        rec.resetQueryStats();
+        for (int round = 0; round < 2; round++) { // The first round warms up the jit.
+            correct = 0;
+            rec.resetQueryStats();
+            random.setSeed(7);
+            for (int q = 0; q < queryCount; q++) {
+                int s = random.nextInt(songCount);
+                float[] clip = SyntheticAudio.clip(songs[s], random.nextInt(SONG_SECONDS - CLIP_SECONDS), CLIP_SECONDS, rate);
+                if (q % 2 == 0) {
+                    clip = SyntheticAudio.addNoise(clip, 0.01, q); // Like a recording. The rest are clean, like file snippets.
+                }
+                long start = System.nanoTime();
+                List<SongMatch> matches = rec.recognizeMatches(clip, 1, 1);
+                latencies[q] = (System.nanoTime() - start) / 1e6;
+                if (!matches.isEmpty() && matches.get(0).getSongId() == s) {
+                    correct++;
+                }
+            }
+        }
+        double[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.println("== " + label + " ==");
+        if (gate != null) {
+            System.out.printf("ingestion: %d of %d slices dropped (%d quiet, %d flat)%n", ingestQuiet + ingestFlat,
+                    ingestFrames, ingestQuiet, ingestFlat);
+        }
+        System.out.printf("index: %d postings, longest posting list %d%n", postings[0], postings[1]);
+        System.out.printf("queries: accuracy=%.3f latency p50=%.2fms p99=%.2fms, %.0f postings scanned per query%n",
+                (double) correct / queryCount, sorted[queryCount / 2], sorted[(int) (0.99 * (queryCount - 1))],
+                (double) rec.getPostingsScanned() / queryCount);
+    }
+
+    /**
+     * A synthetic song shaped like a real track: 3s of silence, a 2s fade in, a near silent passage at 15-18s, a burst of
+     * noise at 25-27s, a 3s fade out and 2s of silence at the end.
+     */
+    private static float[] song(int seed, int rate) {
+        float[] samples = SyntheticAudio.song(seed, SONG_SECONDS, rate);
+        Arrays.fill(samples, 0, 3 * rate, 0);
+        SyntheticAudio.ramp(samples, 3 * rate, 5 * rate, 0, 1);
+        SyntheticAudio.ramp(samples, 15 * rate, 18 * rate, 0.0003, 0.0003);
+        float[] noise = SyntheticAudio.addNoise(new float[2 * rate], 0.3, seed);
+        System.arraycopy(noise, 0, samples, 25 * rate, noise.length);
+        SyntheticAudio.ramp(samples, 35 * rate, 38 * rate, 1, 0);
+        Arrays.fill(samples, 38 * rate, samples.length, 0);
+        return samples;
+    }
+}
@@ -0,0 +1,109 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.util.Arrays;
+
+/**
+ * Loads a catalog with a hasher and reports how evenly the keys spread, to check that lookup cost is flat:
+ *      - bucket occupancy of a ConcurrentHashMap table sized for the keys, using the same bucket index it computes
+ *      - posting list length percentiles, and a histogram of lengths in powers of two
+ *      - how much of the index the longest posting lists hold
+ */
+public class HashDistributionReport {
+
+    private static final int HASH_BITS = 0x7fffffff; // Same mask ConcurrentHashMap uses when spreading hash codes.
+
+    /**
+     * Runs the report.
+     * @param args directory of songs, and optionally which hasher to use: mixed, decimal or both (default both)
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: HashDistributionReport <song directory> [mixed|decimal|both]");
+            return;
+        }
+        String which = args.length > 1 ? args[1] : "both";
+        if (!which.equals("decimal")) {
+            report("mixed", new MixedHasher(), args[0]);
+        }
+        if (!which.equals("mixed")) {
+            report("decimal", new DecimalHasher(), args[0]);
+        }
+    }
+
+    private static void report(String name, KeyPointHasher hasher, String directory) {
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db, hasher));
+        db.loadDatabase(directory);
+
+        // Collect the keys and posting lengths.
+        long[][] keys = new long[1][1024];
+        int[][] lengths = new int[1][1024];
+        int[] count = new int[1];
+        db.forEachPostingList((hash, points) -> {
+            synchronized (count) {
+                if (count[0] == keys[0].length) {
+                    keys[0] = Arrays.copyOf(keys[0], count[0] * 2);
+                    lengths[0] = Arrays.copyOf(lengths[0], count[0] * 2);
+                }
+                keys[0][count[0]] = hash;
+                lengths[0][count[0]] = points.size();
+                count[0]++;
+            }
+        });
+        int n = count[0];
+        if (n == 0) {
+            System.out.println(name + ": no postings");
+            return;
+        }
+        long totalPostings = 0;
+        for (int i = 0; i < n; i++) {
+            totalPostings += lengths[0][i];
+        }
+
+        // Bucket occupancy for a table at ConcurrentHashMap's default load factor.
+        int tableSize = Integer.highestOneBit(Math.max(1, (int) (n / 0.75f)) * 2 - 1);
+        int[] keysPerBucket = new int[tableSize];
+        long[] postingsPerBucket = new long[tableSize];
+        for (int i = 0; i < n; i++) {
+            int h = Long.hashCode(keys[0][i]);
+            int bucket = (h ^ (h >>> 16)) & HASH_BITS & (tableSize - 1);
+            keysPerBucket[bucket]++;
+            postingsPerBucket[bucket] += lengths[0][i];
+        }
+        int empty = 0;
+        int maxKeys = 0;
+        long maxBucketPostings = 0;
+        for (int b = 0; b < tableSize; b++) {
+            if (keysPerBucket[b] == 0) {
+                empty++;
+            }
+            maxKeys = Math.max(maxKeys, keysPerBucket[b]);
+            maxBucketPostings = Math.max(maxBucketPostings, postingsPerBucket[b]);
+        }
+
+        int[] sorted = Arrays.copyOf(lengths[0], n);
+        Arrays.sort(sorted);
+        long topPostings = 0;
+        int top = Math.max(1, n / 100);
+        for (int i = n - top; i < n; i++) {
+            topPostings += sorted[i];
+        }
+
+        System.out.println("== " + name + " hasher ==");
+        System.out.printf("keys=%d postings=%d buckets=%d%n", n, totalPostings, tableSize);
+        System.out.printf("bucket occupancy: empty=%.1f%% mean keys per used bucket=%.2f max keys=%d max postings=%d%n",
+                100.0 * empty / tableSize, (double) n / (tableSize - empty), maxKeys, maxBucketPostings);
+        System.out.printf("posting length: p50=%d p90=%d p99=%d max=%d, longest 1%% of lists hold %.1f%% of postings%n",
+                sorted[(int) (0.50 * (n - 1))], sorted[(int) (0.90 * (n - 1))], sorted[(int) (0.99 * (n - 1))],
+                sorted[n - 1], 100.0 * topPostings / totalPostings);
+        int[] histogram = new int[32];
+        for (int i = 0; i < n; i++) {
+            histogram[31 - Integer.numberOfLeadingZeros(sorted[i])]++;
+        }
+        for (int bit = 0; bit < histogram.length; bit++) {
+            if (histogram[bit] > 0) {
+                System.out.printf("  length %d-%d: %d lists%n", 1 << bit, (1 << (bit + 1)) - 1, histogram[bit]);
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads a directory of songs into a SongDatabase using separate stages for each kind of work:
+ *      - scan: walks the directory tree with a CatalogScanner
+ *      - decode: decodes each file to samples (branchy, close to the disk)
+ *      - fingerprint: fft, keypoints and hashing (pure number crunching)
+ *      - insert: adds the hashes to the database
+ * The stages are connected by bounded queues, so a fast stage blocks instead of running ahead of a slow one, and each
+ * stage has its own number of worker threads. Utilization and queue depth are recorded per stage so the worker counts
+ * can be balanced for a machine.
+ * A file that fails with an exception is reported and skipped. If a worker dies of an Error, such as running out of
+ * memory decoding a huge file, every stage is stopped and run throws the error instead of waiting for that worker.
+ * A pipeline can only be run once.
+ */
+public class IngestionPipeline {
+
+    private static final Object END = new Object(); // Marker telling a worker that no more items will come.
+    private static final long POLL_MILLIS = 100; // How often a blocked put checks whether the pipeline was stopped.
+
+    /**
+     * Told about every song added to the database, e.g. to show progress. Called from the insert threads.
+     */
+    public interface Listener {
+        /**
+         * Called after a song has been added.
+         * @param name file name of the song
+         * @param songsAdded songs added so far, including this one
+         * @param filesFound audio files the scanner has found so far. Grows while the scan is still running.
+         */
+        void songAdded(String name, int songsAdded, int filesFound);
+    }
+
+    private final SongDatabase songs;
+    private final CatalogScanner scanner;
+    private final int queueCapacity;
+    private final Stage decode;
+    private final Stage fingerprint;
+    private final Stage insert;
+    private final AtomicInteger filesFound;
+    private final AtomicInteger songsAdded;
+    private volatile Listener listener;
+    private volatile boolean stopped; // Set when the run is interrupted or a worker failed, so blocked stages give up.
+    private volatile Throwable failure; // First error a worker died of.
+    private boolean started;
+    private long wallNanos;
+
+    /**
+     * Constructor.
+     * @param songs database that the songs will be added to
+     * @param decodeWorkers number of threads decoding audio files
+     * @param fingerprintWorkers number of threads running the fft, keypoints and hashing
+     * @param insertWorkers number of threads inserting into the database
+     * @param queueCapacity maximum number of items waiting between two stages
+     */
+    public IngestionPipeline(SongDatabase songs, int decodeWorkers, int fingerprintWorkers, int insertWorkers, int queueCapacity) {
+        this(songs, new CatalogScanner(), decodeWorkers, fingerprintWorkers, insertWorkers, queueCapacity);
+    }
+
+    /**
+     * Constructor with a custom scanner, e.g. to accept other file extensions.
+     * @param songs database that the songs will be added to
+     * @param scanner finds the audio files to ingest
+     * @param decodeWorkers number of threads decoding audio files
+     * @param fingerprintWorkers number of threads running the fft, keypoints and hashing
+     * @param insertWorkers number of threads inserting into the database
+     * @param queueCapacity maximum number of items waiting between two stages
+     */
+    public IngestionPipeline(SongDatabase songs, CatalogScanner scanner, int decodeWorkers, int fingerprintWorkers,
+                             int insertWorkers, int queueCapacity) {
+        this.songs = songs;
+        this.scanner = scanner;
+        this.queueCapacity = queueCapacity;
+        this.insert = new Stage("insert", insertWorkers, null) {
+            @Override
+            Object process(Object item) {
+                Hashed fp = (Hashed) item;
+                songs.addSong(fp.name, fp.fingerprint);
+                System.out.println("Finished analyzing " + fp.name);
+                int added = songsAdded.incrementAndGet();
+                Listener current = listener;
+                if (current != null) {
+                    current.songAdded(fp.name, added, filesFound.get());
+                }
+                return null;
+            }
+        };
+        this.fingerprint = new Stage("fingerprint", fingerprintWorkers, insert) {
+            @Override
+            Object process(Object item) {
+                Decoded decoded = (Decoded) item;
+                return new Hashed(decoded.name, songs.fingerprint(decoded.samples));
+            }
+        };
+        this.decode = new Stage("decode", decodeWorkers, fingerprint) {
+            @Override
+            Object process(Object item) {
+                File file = (File) item;
+                float[] samples = songs.getSamples(file);
+                return samples == null ? null : new Decoded(file.getName(), samples);
+            }
+        };
+        this.filesFound = new AtomicInteger();
+        this.songsAdded = new AtomicInteger();
+    }
+
+    /**
+     * Sets the listener told about every added song.
+     * @param listener the listener, or null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Runs every stage over the audio files in a directory tree and waits for the last song to be inserted.
+     * If the calling thread is interrupted, the workers are stopped and run returns with the interrupt flag set.
+     * @param directory to look in for audio files
+     * @throws IllegalStateException if the pipeline has already been run
+     * @throws Error the error a worker died of, after every stage has been stopped
+     * @throws RuntimeException whatever the scanner threw, after every stage has been stopped
+     */
+    public void run(File directory) {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("An IngestionPipeline can only be run once");
+            }
+            started = true;
+        }
+        long start = System.nanoTime();
+        insert.start();
+        fingerprint.start();
+        decode.start();
+        try {
+            // The scan stage streams files to the decoders while it is still walking the tree.
+            scanner.scan(directory, file -> {
+                filesFound.incrementAndGet();
+                decode.put(file);
+            });
+            System.out.println("Found " + filesFound.get() + " files.");
+            decode.finish();
+            insert.awaitWorkers();
+        } catch (InterruptedException e) {
+            if (failure == null) {
+                Thread.currentThread().interrupt();
+            }
+            stop();
+        } catch (RuntimeException | Error e) {
+            stop(); // E.g. the scanner failed; the workers would otherwise wait for files forever.
+            throw e;
+        }
+        wallNanos = System.nanoTime() - start;
+        Throwable error = failure;
+        if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new IllegalStateException("Ingestion failed", error);
+        }
+    }
+
+    /**
+     * Stops every stage: blocked puts give up and the workers are interrupted.
+     */
+    private void stop() {
+        stopped = true;
+        decode.interruptWorkers();
+        fingerprint.interruptWorkers();
+        insert.interruptWorkers();
+    }
+
+    /**
+     * Records the error a worker died of and stops the pipeline, so no stage waits for the dead worker.
+     */
+    private synchronized void fail(Throwable error) {
+        if (failure == null) {
+            failure = error;
+        }
+        stop();
+    }
+
+    /**
+     * Returns a readable summary of the last run: per stage worker count, items processed, utilization and queue depth.
+     * @return report text
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Ingested %d files in %.2fs%n", filesFound.get(), wallNanos / 1e9));
+        for (Stage stage : new Stage[]{decode, fingerprint, insert}) {
+            report.append(stage.report(wallNanos)).append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+
+    public Stage getDecodeStage() {
+        return decode;
+    }
+
+    public Stage getFingerprintStage() {
+        return fingerprint;
+    }
+
+    public Stage getInsertStage() {
+        return insert;
+    }
+
+    /**
+     * One stage of the pipeline: an input queue and the workers that drain it into the next stage.
+     */
+    public abstract class Stage {
+        private final String name;
+        private final int workers;
+        private final Stage next;
+        private final BlockingQueue<Object> queue;
+        private final List<Thread> threads;
+        private final AtomicInteger running;
+        private final AtomicLong busyNanos;
+        private final AtomicLong processed;
+        private final AtomicLong depthSum;
+        private final AtomicLong depthSamples;
+        private final AtomicInteger maxDepth;
+
+        Stage(String name, int workers, Stage next) {
+            this.name = name;
+            this.workers = Math.max(1, workers);
+            this.next = next;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.threads = new ArrayList<>();
+            this.running = new AtomicInteger();
+            this.busyNanos = new AtomicLong();
+            this.processed = new AtomicLong();
+            this.depthSum = new AtomicLong();
+            this.depthSamples = new AtomicLong();
+            this.maxDepth = new AtomicInteger();
+        }
+
+        /**
+         * Does the work of this stage for one item.
+         * @param item taken from the input queue
+         * @return the item to pass to the next stage, or null to drop it
+         */
+        abstract Object process(Object item);
+
+        void start() {
+            running.set(workers);
+            for (int i = 0; i < workers; i++) {
+                Thread thread = new Thread(this::work, "ingest-" + name + "-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        void put(Object item) throws InterruptedException {
+            int depth = queue.size();
+            depthSum.addAndGet(depth);
+            depthSamples.incrementAndGet();
+            maxDepth.accumulateAndGet(depth, Math::max);
+            offer(item);
+        }
+
+        /**
+         * Blocks while the queue is full, which is what holds back the upstream stage, but gives up with an
+         * InterruptedException once the pipeline has been stopped, since the workers of this stage may be gone.
+         */
+        private void offer(Object item) throws InterruptedException {
+            while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (stopped) {
+                    throw new InterruptedException("Ingestion stopped");
+                }
+            }
+        }
+
+        void finish() throws InterruptedException {
+            for (int i = 0; i < workers; i++) {
+                offer(END);
+            }
+        }
+
+        void awaitWorkers() throws InterruptedException {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        void interruptWorkers() {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+
+        private void work() {
+            try {
+                while (true) {
+                    Object item = queue.take();
+                    if (item == END) {
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    Object result = null;
+                    try {
+                        result = process(item);
+                    } catch (RuntimeException e) {
+                        System.out.println(e.getMessage());
+                        e.printStackTrace();
+                    }
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    processed.incrementAndGet();
+                    if (result != null && next != null) {
+                        next.put(result);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                // The last worker out tells the next stage that nothing else is coming.
+                if (running.decrementAndGet() == 0 && next != null && !stopped) {
+                    try {
+                        next.finish();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWorkers() {
+            return workers;
+        }
+
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        /**
+         * Current number of items waiting in front of this stage.
+         * @return queue depth
+         */
+        public int getQueueDepth() {
+            return queue.size();
+        }
+
+        public int getMaxQueueDepth() {
+            return maxDepth.get();
+        }
+
+        /**
+         * Average queue depth seen by the items entering this stage.
+         * @return mean depth
+         */
+        public double getMeanQueueDepth() {
+            long samples = depthSamples.get();
+            return samples == 0 ? 0 : (double) depthSum.get() / samples;
+        }
+
+        /**
+         * Fraction of the available worker time that was spent processing items.
+         * @param wallNanos length of the run
+         * @return utilization between 0 and 1
+         */
+        public double getUtilization(long wallNanos) {
+            return wallNanos == 0 ? 0 : busyNanos.get() / ((double) wallNanos * workers);
+        }
+
+        String report(long wallNanos) {
+            return String.format("%-12s workers=%-3d items=%-6d utilization=%5.1f%% queue mean=%.1f max=%d/%d",
+                    name, workers, getProcessed(), 100 * getUtilization(wallNanos), getMeanQueueDepth(),
+                    getMaxQueueDepth(), queueCapacity);
+        }
+    }
+
+    private static class Decoded {
+        private final String name;
+        private final float[] samples;
+
+        Decoded(String name, float[] samples) {
+            this.name = name;
+            this.samples = samples;
+        }
+    }
+
+    private static class Hashed {
+        private final String name;
+        private final Fingerprint fingerprint;
+
+        Hashed(String name, Fingerprint fingerprint) {
+            this.name = name;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+/**
+ * Turns the key points of one slice of time into a hash key for the song database.
+ * Implementations are plugged into SongFingerprint, which uses the same hasher with a fine quantization for the offset
+ * index and a coarse quantization for the shortlist index.
+ */
+public interface KeyPointHasher {
+
+    /**
+     * Returns a hash of the key points after quantizing each of them.
+     * @param points array of key points for a particular slice of time. Must be at least length 4.
+     * @param quantization number of adjacent frequency bins that are treated as the same value
+     * @return the hash
+     */
+    long hash(long[] points, long quantization);
+}
@@ -0,0 +1,148 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the same clip to a RecognitionServer from several threads for a fixed time and reports the throughput and
+ * latency percentiles of the successful requests.
+ */
+public class LoadGenerator {
+
+    /**
+     * Runs the load test.
+     * @param args url of the recognize endpoint, clip file, number of concurrent clients, and seconds to run
+     * @throws Exception if the clip can't be read or a client thread is interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: LoadGenerator <url> <clip file> [concurrency] [seconds]");
+            return;
+        }
+        URL url = new URL(args[0]);
+        byte[] clip = Files.readAllBytes(Paths.get(args[1]));
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        AtomicLong rejected = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        List<Client> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < concurrency; c++) {
+            Client client = new Client(url, clip, deadline, rejected, failed);
+            Thread thread = new Thread(client, "load-client-" + c);
+            clients.add(client);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+        int total = 0;
+        for (Client client : clients) {
+            total += client.count;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (Client client : clients) {
+            System.arraycopy(client.latencies, 0, all, pos, client.count);
+            pos += client.count;
+        }
+        Arrays.sort(all);
+        System.out.printf("requests ok=%d rejected=%d failed=%d in %.1fs%n", total, rejected.get(), failed.get(), elapsedSeconds);
+        System.out.printf("qps=%.1f p50=%.1fms p99=%.1fms%n", total / elapsedSeconds, percentile(all, 0.50), percentile(all, 0.99));
+    }
+
+    /**
+     * Posts the clip in a loop until the deadline, recording the latency of each successful request.
+     */
+    private static class Client implements Runnable {
+        private final URL url;
+        private final byte[] clip;
+        private final long deadline;
+        private final AtomicLong rejected;
+        private final AtomicLong failed;
+        private long[] latencies = new long[1024];
+        private int count;
+
+        Client(URL url, byte[] clip, long deadline, AtomicLong rejected, AtomicLong failed) {
+            this.url = url;
+            this.clip = clip;
+            this.deadline = deadline;
+            this.rejected = rejected;
+            this.failed = failed;
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                long sent = System.nanoTime();
+                int status;
+                try {
+                    status = post(url, clip);
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    continue;
+                }
+                long elapsed = System.nanoTime() - sent;
+                if (status == 200) {
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = elapsed;
+                } else if (status == 503) {
+                    rejected.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static int post(URL url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            // Drain the response so the connection can be reused.
+            try (InputStream response = in) {
+                ByteArrayOutputStream ignored = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = response.read(buffer)) != -1) {
+                    ignored.write(buffer, 0, n);
+                }
+            }
+        }
+        return status;
+    }
+}
@@ -25,6 +25,8 @@ import java.util.List;
  */
 public class MainApp extends Application {
 
+    private static final long WARMUP_MILLIS = 10000;
+
     private AudioFingerprinter recognizer;
     private SoundRecorder recorder;
 
@@ -238,9 +240,16 @@ public class MainApp extends Application {
     public void start(Stage primaryStage) {
         SongDatabase songDB = new SongDatabase();
         //TODO: Initialize the AudioFingerPrinter with your implementing class.
-        recognizer = new SongFingerprint(songDB);
+        SongFingerprint songFingerprint = new SongFingerprint(songDB);
+        recognizer = songFingerprint;
         songDB.setFingerprinter(recognizer);
 
+        // Warm up the recognizer while the user picks a song directory, so the first recording is recognized at full speed.
+        Thread warmup = new Thread(() -> System.out.println(new Warmup(songFingerprint, WARMUP_MILLIS).run().getReport()), "warmup");
+        warmup.setDaemon(true);
+        warmup.setPriority(Thread.MIN_PRIORITY);
+        warmup.start();
+
         Scene scene = new Scene(createContent(primaryStage), 1200, 800);
 
         primaryStage.setTitle("Audio Fingerprinting");
@@ -0,0 +1,41 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+/**
+ * Packs every quantized key point into its own 12 bit field, so no two combinations of bands share a key, and then runs
+ * the murmur3 64 bit finalizer over the packed value. The finalizer is a bijection, so it adds no collisions, but it
+ * spreads nearby keys over the whole range, which keeps map buckets evenly loaded.
+ * Being a bijection, it maps exactly one packed value to -1, FingerprintFile.NO_HASH. That value has fields of 1682 and
+ * 3303, while key points are bins of one chunk's fft, below 512, so real key points never hash to NO_HASH.
+ */
+public class MixedHasher implements KeyPointHasher {
+
+    private static final int FIELD_BITS = 12;
+    private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+    private static final int MAX_FIELDS = 64 / FIELD_BITS;
+
+    @Override
+    public long hash(long[] points, long quantization) {
+        if (points.length < 4)
+            return -1;
+        long packed = 0;
+        int fields = Math.min(points.length, MAX_FIELDS);
+        for (int i = 0; i < fields; i++) {
+            packed |= ((points[i] / quantization) & FIELD_MASK) << (i * FIELD_BITS);
+        }
+        return mix(packed);
+    }
+
+    /**
+     * The murmur3 fmix64 finalizer.
+     * @param k value to mix
+     * @return mixed value
+     */
+    static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb3f91a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,152 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.util.Arrays;
+
+/**
+ * Counts query hashes per (song, offset) bin and keeps the best bin of every song, in open addressing tables of
+ * primitives. Replaces a map of maps of boxed integers in the scoring loop, so counting a posting is a few array reads
+ * with no allocation and no interface calls.
+ */
+public final class OffsetHistogram {
+
+    private static final long EMPTY = -1; // Song ids are never negative, so no packed bin is -1.
+    private static final int NO_SONG = -1;
+
+    private long[] bins; // Packed song id and offset, see PostingSort.pack.
+    private int[] counts;
+    private int binCount;
+
+    private int[] songSlots; // Index into the dense song arrays, by song id hash.
+    private int[] songIds;
+    private int[] bestCounts;
+    private int[] bestOffsets;
+    private int songCount;
+
+    /**
+     * Constructor.
+     * @param expectedBins number of bins expected, to size the tables
+     */
+    public OffsetHistogram(int expectedBins) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedBins * 2 - 1)) * 2;
+        bins = new long[capacity];
+        counts = new int[capacity];
+        Arrays.fill(bins, EMPTY);
+        songSlots = new int[16];
+        Arrays.fill(songSlots, NO_SONG);
+        songIds = new int[8];
+        bestCounts = new int[8];
+        bestOffsets = new int[8];
+    }
+
+    /**
+     * Adds one to a bin.
+     * @param songId song of the posting
+     * @param offset song time minus query time
+     * @return the new count of the bin
+     */
+    public int add(int songId, int offset) {
+        long bin = PostingSort.pack(songId, offset);
+        int mask = bins.length - 1;
+        int slot = (int) MixedHasher.mix(bin) & mask;
+        while (bins[slot] != bin && bins[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        int count;
+        if (bins[slot] == EMPTY) {
+            bins[slot] = bin;
+            count = counts[slot] = 1;
+            if (++binCount * 2 > bins.length) {
+                growBins();
+            }
+        } else {
+            count = ++counts[slot];
+        }
+        int song = songIndex(songId);
+        if (count > bestCounts[song]) {
+            bestCounts[song] = count;
+            bestOffsets[song] = offset;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of songs with at least one counted posting. Songs are numbered from 0 in the order they were
+     * first counted, for the getters below.
+     * @return number of songs
+     */
+    public int songCount() {
+        return songCount;
+    }
+
+    public int songId(int song) {
+        return songIds[song];
+    }
+
+    public int bestCount(int song) {
+        return bestCounts[song];
+    }
+
+    public int bestOffset(int song) {
+        return bestOffsets[song];
+    }
+
+    private int songIndex(int songId) {
+        int mask = songSlots.length - 1;
+        int slot = songSlot(songId, mask);
+        while (songSlots[slot] != NO_SONG) {
+            if (songIds[songSlots[slot]] == songId) {
+                return songSlots[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (songCount == songIds.length) {
+            songIds = Arrays.copyOf(songIds, songCount * 2);
+            bestCounts = Arrays.copyOf(bestCounts, songCount * 2);
+            bestOffsets = Arrays.copyOf(bestOffsets, songCount * 2);
+        }
+        int song = songCount++;
+        songIds[song] = songId;
+        songSlots[slot] = song;
+        if (songCount * 2 > songSlots.length) {
+            growSongs();
+        }
+        return song;
+    }
+
+    private static int songSlot(int songId, int mask) {
+        int h = songId * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void growBins() {
+        long[] oldBins = bins;
+        int[] oldCounts = counts;
+        bins = new long[oldBins.length * 2];
+        counts = new int[oldBins.length * 2];
+        Arrays.fill(bins, EMPTY);
+        int mask = bins.length - 1;
+        for (int i = 0; i < oldBins.length; i++) {
+            if (oldBins[i] != EMPTY) {
+                int slot = (int) MixedHasher.mix(oldBins[i]) & mask;
+                while (bins[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                bins[slot] = oldBins[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private void growSongs() {
+        songSlots = new int[songSlots.length * 2];
+        Arrays.fill(songSlots, NO_SONG);
+        int mask = songSlots.length - 1;
+        for (int song = 0; song < songCount; song++) {
+            int slot = songSlot(songIds[song], mask);
+            while (songSlots[slot] != NO_SONG) {
+                slot = (slot + 1) & mask;
+            }
+            songSlots[slot] = song;
+        }
+    }
+}
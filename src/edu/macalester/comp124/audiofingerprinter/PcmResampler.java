@@ -0,0 +1,117 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Turns interleaved signed PCM bytes into mono float samples at the analysis rate in a single pass.
+ * Each incoming frame is downmixed by averaging its channels, and all the frames that fall inside one output sample
+ * period are averaged together (a box filter), which resamples and keeps most of the aliasing out at the same time.
+ * Data can be written in pieces of any size, so callers can reuse one read buffer for a whole file.
+ */
+public class PcmResampler {
+
+    private final int channels;
+    private final int bytesPerSample;
+    private final boolean bigEndian;
+    private final double scale;
+    private final double step; // Number of source frames that make up one output sample.
+
+    private float[] samples;
+    private int size;
+
+    private double nextBoundary;
+    private long sourceFrames;
+    private double sum;
+    private int count;
+    private float last;
+
+    private final byte[] partial; // Bytes of a frame that was split between two writes.
+    private int partialLength;
+
+    /**
+     * Constructor.
+     * @param sourceFormat format of the bytes that will be written. Must be signed PCM with 8 or 16 bit samples.
+     * @param targetRate sample rate of the output in Hz.
+     */
+    public PcmResampler(AudioFormat sourceFormat, float targetRate) {
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(sourceFormat.getEncoding())
+                || (sourceFormat.getSampleSizeInBits() != 8 && sourceFormat.getSampleSizeInBits() != 16)) {
+            throw new IllegalArgumentException("Unsupported pcm format: " + sourceFormat);
+        }
+        this.channels = Math.max(1, sourceFormat.getChannels());
+        this.bytesPerSample = sourceFormat.getSampleSizeInBits() / 8;
+        this.bigEndian = sourceFormat.isBigEndian();
+        this.scale = 1.0 / (channels * (bytesPerSample == 1 ? 128.0 : 32768.0));
+        this.step = sourceFormat.getSampleRate() / targetRate;
+        this.samples = new float[4096];
+        this.nextBoundary = step;
+        this.partial = new byte[channels * bytesPerSample];
+    }
+
+    /**
+     * Downmixes and resamples len bytes of interleaved pcm data starting at off.
+     * @param data buffer holding the pcm bytes
+     * @param off first byte to read
+     * @param len number of bytes to read
+     */
+    public void write(byte[] data, int off, int len) {
+        int frameSize = partial.length;
+        int end = off + len;
+        if (partialLength > 0) {
+            int needed = Math.min(frameSize - partialLength, len);
+            System.arraycopy(data, off, partial, partialLength, needed);
+            partialLength += needed;
+            off += needed;
+            if (partialLength < frameSize)
+                return;
+            addFrame(partial, 0);
+            partialLength = 0;
+        }
+        for (; off + frameSize <= end; off += frameSize) {
+            addFrame(data, off);
+        }
+        partialLength = end - off;
+        System.arraycopy(data, off, partial, 0, partialLength);
+    }
+
+    /**
+     * Returns the samples produced so far, trimmed to size.
+     * @return mono samples between -1 and 1
+     */
+    public float[] toArray() {
+        float[] result = new float[size];
+        System.arraycopy(samples, 0, result, 0, size);
+        return result;
+    }
+
+    private void addFrame(byte[] data, int off) {
+        int mixed = 0;
+        for (int c = 0; c < channels; c++) {
+            if (bytesPerSample == 1) {
+                mixed += data[off];
+            } else if (bigEndian) {
+                mixed += (data[off] << 8) | (data[off + 1] & 0xff);
+            } else {
+                mixed += (data[off + 1] << 8) | (data[off] & 0xff);
+            }
+            off += bytesPerSample;
+        }
+        sum += mixed * scale;
+        count++;
+        sourceFrames++;
+        while (sourceFrames >= nextBoundary) {
+            if (count > 0) {
+                last = (float) (sum / count);
+                sum = 0;
+                count = 0;
+            }
+            if (size == samples.length) {
+                float[] grown = new float[samples.length * 2];
+                System.arraycopy(samples, 0, grown, 0, size);
+                samples = grown;
+            }
+            samples[size++] = last;
+            nextBoundary += step;
+        }
+    }
+}
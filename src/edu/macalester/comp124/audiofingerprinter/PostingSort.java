@@ -0,0 +1,114 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+/**
+ * Sorts postings held in two parallel primitive arrays, hashes and packed values, by hash and then by value, without
+ * boxing anything. Values are usually a song id and time packed with pack.
+ */
+public class PostingSort {
+
+    private static final int INSERTION_SORT_THRESHOLD = 24;
+
+    private PostingSort() {
+    }
+
+    /**
+     * Packs a song id and time into one long that sorts by song and then time.
+     * @param songId
+     * @param time
+     * @return packed value
+     */
+    public static long pack(int songId, int time) {
+        return ((long) songId << 32) | (time & 0xffffffffL);
+    }
+
+    /**
+     * Returns the song id of a packed value.
+     * @param value made by pack
+     * @return song id
+     */
+    public static int songId(long value) {
+        return (int) (value >>> 32);
+    }
+
+    /**
+     * Returns the time of a packed value.
+     * @param value made by pack
+     * @return time slice
+     */
+    public static int time(long value) {
+        return (int) value;
+    }
+
+    /**
+     * Sorts the range [from, to) of both arrays by hash, breaking ties by value.
+     * @param hashes hash of each posting
+     * @param values packed value of each posting
+     * @param from first index, inclusive
+     * @param to last index, exclusive
+     */
+    public static void sort(long[] hashes, long[] values, int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            int mid = (from + to) >>> 1;
+            // Median of three as the pivot.
+            int a = from;
+            int b = mid;
+            int c = to - 1;
+            if (less(hashes, values, b, a)) swap(hashes, values, a, b);
+            if (less(hashes, values, c, b)) {
+                swap(hashes, values, b, c);
+                if (less(hashes, values, b, a)) swap(hashes, values, a, b);
+            }
+            long pivotHash = hashes[mid];
+            long pivotValue = values[mid];
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (compare(hashes[i], values[i], pivotHash, pivotValue) < 0) i++;
+                while (compare(hashes[j], values[j], pivotHash, pivotValue) > 0) j--;
+                if (i <= j) {
+                    swap(hashes, values, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller side and loop on the larger one to bound the stack depth.
+            if (j - from < to - i) {
+                sort(hashes, values, from, j + 1);
+                from = i;
+            } else {
+                sort(hashes, values, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            long h = hashes[i];
+            long v = values[i];
+            int j = i - 1;
+            while (j >= from && compare(hashes[j], values[j], h, v) > 0) {
+                hashes[j + 1] = hashes[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            hashes[j + 1] = h;
+            values[j + 1] = v;
+        }
+    }
+
+    private static int compare(long hashA, long valueA, long hashB, long valueB) {
+        int c = Long.compare(hashA, hashB);
+        return c != 0 ? c : Long.compare(valueA, valueB);
+    }
+
+    private static boolean less(long[] hashes, long[] values, int i, int j) {
+        return compare(hashes[i], values[i], hashes[j], values[j]) < 0;
+    }
+
+    private static void swap(long[] hashes, long[] values, int i, int j) {
+        long h = hashes[i];
+        hashes[i] = hashes[j];
+        hashes[j] = h;
+        long v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+    }
+}
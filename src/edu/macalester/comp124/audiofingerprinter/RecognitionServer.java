@@ -0,0 +1,453 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small http server on localhost that recognizes audio clips against a shared SongDatabase.
+ *
+ * POST /recognize with an mp3 or wav file as the body, or raw pcm with a content type of
+ * "audio/L16; rate=44100; channels=1" (16 bit big-endian, as in RFC 2586). The optional query parameters maxResults and
+ * minScore are passed on to the recognizer. The response is a json object with the matches.
+ * GET /stats returns the admission and batching counters as json.
+ *
+ * Each request is decoded and hashed on its own handler thread (a virtual thread when the JDK has them). The hashes are
+ * then queued for a batcher, which gathers the requests that arrive within a short window into one micro-batch so their
+ * index lookups share a single pass. Requests beyond maxInFlight are rejected with 503 right away instead of queueing,
+ * which keeps latency bounded when the server is overloaded.
+ * Bodies larger than MAX_BODY_BYTES, about a minute of 16 bit stereo audio, are rejected with 413: from the
+ * Content-Length header before anything is read, or as soon as a chunked upload passes the limit. Rejected uploads are
+ * not read; the connection is closed instead.
+ */
+public class RecognitionServer {
+
+    private static final int DEFAULT_MAX_RESULTS = 5;
+    private static final long REQUEST_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_BODY_BYTES = 12 << 20;
+
+    private final SongFingerprint recognizer;
+    private final SongDatabase songs;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final int batchWorkers;
+    private final int maxInFlight;
+    private final Semaphore admission;
+    private final BlockingQueue<PendingQuery> pending;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedQueries = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService handlers;
+    private List<Thread> batchers;
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     * @param recognizer fingerprinter whose song database will be searched
+     * @param maxBatchSize largest number of requests scored in one batch
+     * @param maxBatchDelayMillis longest time the first request of a batch waits for others to join it
+     * @param maxInFlight number of requests that can be decoding, queued or scoring at once before new ones are rejected
+     * @param batchWorkers number of threads scoring batches
+     */
+    public RecognitionServer(SongFingerprint recognizer, int maxBatchSize, int maxBatchDelayMillis, int maxInFlight,
+                             int batchWorkers) {
+        this.recognizer = recognizer;
+        this.songs = recognizer.getSongDB();
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+        this.batchWorkers = Math.max(1, batchWorkers);
+        this.maxInFlight = maxInFlight;
+        this.admission = new Semaphore(maxInFlight);
+        this.pending = new LinkedBlockingQueue<>();
+    }
+
+    /**
+     * Starts listening on the loopback interface.
+     * @param port to listen on, or 0 for any free port
+     * @throws IOException if the port can't be bound
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/recognize", this::handleRecognize);
+        server.createContext("/stats", this::handleStats);
+        handlers = newHandlerExecutor();
+        server.setExecutor(handlers);
+        running = true;
+        batchers = new ArrayList<>();
+        for (int i = 0; i < batchWorkers; i++) {
+            Thread batcher = new Thread(this::runBatcher, "recognition-batcher-" + i);
+            batcher.setDaemon(true);
+            batchers.add(batcher);
+            batcher.start();
+        }
+        server.start();
+    }
+
+    /**
+     * Stops the server and its threads.
+     */
+    public void stop() {
+        running = false;
+        server.stop(0);
+        handlers.shutdownNow();
+        for (Thread batcher : batchers) {
+            batcher.interrupt();
+        }
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     * @return port number
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Uses a virtual thread per request when the JDK supports it, and a cached thread pool otherwise.
+     * @return executor for the http handlers
+     */
+    private static ExecutorService newHandlerExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void handleRecognize(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{\"error\":\"use POST\"}");
+                return;
+            }
+            if (declaredLength(exchange) > MAX_BODY_BYTES) {
+                tooLarge.incrementAndGet();
+                refuse(exchange, 413, "{\"error\":\"clip too large\"}");
+                return;
+            }
+            if (!admission.tryAcquire()) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                refuse(exchange, 503, "{\"error\":\"overloaded\"}");
+                return;
+            }
+            accepted.incrementAndGet();
+            try {
+                recognize(exchange);
+            } finally {
+                admission.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void recognize(HttpExchange exchange) throws IOException {
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        int maxResults;
+        int minScore;
+        try {
+            maxResults = Integer.parseInt(params.getOrDefault("maxResults", String.valueOf(DEFAULT_MAX_RESULTS)));
+            minScore = Integer.parseInt(params.getOrDefault("minScore", "1"));
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "{\"error\":\"maxResults and minScore must be integers\"}");
+            return;
+        }
+
+        byte[] body = readAll(exchange.getRequestBody(), MAX_BODY_BYTES);
+        if (body == null) {
+            tooLarge.incrementAndGet();
+            refuse(exchange, 413, "{\"error\":\"clip too large\"}");
+            return;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        float[] samples;
+        if (contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("audio/l16")) {
+            Map<String, String> format = parseContentType(contentType);
+            try {
+                float rate = Float.parseFloat(format.getOrDefault("rate", "44100"));
+                int channels = Integer.parseInt(format.getOrDefault("channels", "1"));
+                samples = songs.convertToSamples(body, new AudioFormat(rate, 16, channels, true, true));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "{\"error\":\"bad audio/L16 parameters\"}");
+                return;
+            }
+        } else {
+            samples = songs.getSamples(new ByteArrayInputStream(body), "request");
+        }
+        if (samples == null) {
+            respond(exchange, 400, "{\"error\":\"unable to decode audio\"}");
+            return;
+        }
+
+        PendingQuery query = new PendingQuery(recognizer.queryFingerprint(samples), maxResults, minScore);
+        pending.add(query);
+        List<SongMatch> matches;
+        try {
+            matches = query.result.get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            query.result.cancel(false);
+            timedOut.incrementAndGet();
+            respond(exchange, 504, "{\"error\":\"timed out\"}");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{\"error\":\"shutting down\"}");
+            return;
+        } catch (ExecutionException e) {
+            respond(exchange, 500, "{\"error\":" + quote(String.valueOf(e.getCause().getMessage())) + "}");
+            return;
+        }
+        respond(exchange, 200, toJson(matches));
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            long batchCount = batches.get();
+            String json = String.format(Locale.ROOT,
+                    "{\"accepted\":%d,\"rejected\":%d,\"tooLarge\":%d,\"timedOut\":%d,\"inFlight\":%d,\"queued\":%d,\"batches\":%d,\"meanBatchSize\":%.2f}",
+                    accepted.get(), rejected.get(), tooLarge.get(), timedOut.get(), maxInFlight - admission.availablePermits(),
+                    pending.size(), batchCount, batchCount == 0 ? 0.0 : (double) batchedQueries.get() / batchCount);
+            respond(exchange, 200, json);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Takes requests off the queue in micro-batches and scores each batch with one shared index pass.
+     */
+    private void runBatcher() {
+        List<PendingQuery> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                PendingQuery first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxBatchDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    long wait = deadline - System.nanoTime();
+                    PendingQuery next = wait > 0 ? pending.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        pending.drainTo(batch, maxBatchSize - batch.size());
+                        break;
+                    }
+                    batch.add(next);
+                }
+                score(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void score(List<PendingQuery> batch) {
+        List<Fingerprint> queries = new ArrayList<>(batch.size());
+        int[] maxResults = new int[batch.size()];
+        int[] minScores = new int[batch.size()];
+        List<PendingQuery> live = new ArrayList<>(batch.size());
+        for (PendingQuery query : batch) {
+            if (query.result.isDone()) {
+                continue; // The client already gave up.
+            }
+            maxResults[live.size()] = query.maxResults;
+            minScores[live.size()] = query.minScore;
+            queries.add(query.fingerprint);
+            live.add(query);
+        }
+        if (live.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+        batchedQueries.addAndGet(live.size());
+        try {
+            List<List<SongMatch>> results = recognizer.recognizeBatch(queries, maxResults, minScores);
+            for (int i = 0; i < live.size(); i++) {
+                live.get(i).result.complete(results.get(i));
+            }
+        } catch (RuntimeException e) {
+            for (PendingQuery query : live) {
+                query.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static String toJson(List<SongMatch> matches) {
+        StringBuilder json = new StringBuilder("{\"matches\":[");
+        for (int i = 0; i < matches.size(); i++) {
+            SongMatch m = matches.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.ROOT,
+                    "{\"songId\":%d,\"name\":%s,\"offsetSeconds\":%.3f,\"matchCount\":%d,\"confidence\":%.4f}",
+                    m.getSongId(), quote(m.getSongName()), m.getOffsetSeconds(), m.getMatchCount(), m.getConfidence()));
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Answers without reading the request body, and closes the connection so the rest of the upload is not drained.
+     */
+    private static void refuse(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().set("Connection", "close");
+        respond(exchange, status, json);
+    }
+
+    /**
+     * Returns the body length the client announced, or -1 if it did not send a valid Content-Length.
+     */
+    private static long declaredLength(HttpExchange exchange) {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return length == null ? -1 : Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a request body of at most limit bytes.
+     * @return the body, or null as soon as it turns out to be longer than limit
+     */
+    private static byte[] readAll(InputStream in, int limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            if (out.size() + n > limit) {
+                return null;
+            }
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(pair.substring(0, eq), pair.substring(eq + 1));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static Map<String, String> parseContentType(String contentType) {
+        Map<String, String> params = new HashMap<>();
+        String[] parts = contentType.split(";");
+        for (int i = 1; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            if (eq > 0) {
+                params.put(parts[i].substring(0, eq).trim().toLowerCase(Locale.ROOT), parts[i].substring(eq + 1).trim());
+            }
+        }
+        return params;
+    }
+
+    /**
+     * A hashed request waiting to be scored by a batcher.
+     */
+    private static class PendingQuery {
+        private final Fingerprint fingerprint;
+        private final int maxResults;
+        private final int minScore;
+        private final CompletableFuture<List<SongMatch>> result;
+
+        PendingQuery(Fingerprint fingerprint, int maxResults, int minScore) {
+            this.fingerprint = fingerprint;
+            this.maxResults = maxResults;
+            this.minScore = minScore;
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * Loads a directory of songs and serves recognition requests for it on localhost.
+     * @param args directory of songs, and optionally the port (default 8080)
+     * @throws IOException if the port can't be bound
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: RecognitionServer <song directory> [port]");
+            return;
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        SongDatabase db = new SongDatabase();
+        SongFingerprint rec = new SongFingerprint(db);
+        db.setFingerprinter(rec);
+        db.loadDatabase(args[0]);
+        System.out.println(new Warmup(rec, 10000).run().getReport());
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        RecognitionServer server = new RecognitionServer(rec, 32, 5, 4 * cores, Math.max(1, cores / 4));
+        server.start(port);
+        System.out.println("Listening on http://localhost:" + server.getPort() + "/recognize");
+    }
+}
@@ -0,0 +1,281 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures recognition accuracy and speed together, offline and without any audio files, so every change can be judged
+ * on both. From one seed it generates a catalog of synthetic songs, ingests them as 16 bit stereo 44.1 kHz wav data
+ * through SongDatabase, and then recognizes query clips through AudioFingerprinter the way recordings are, as 8 bit mono
+ * 44.1 kHz pcm. Every scenario uses the same songs and clip positions with one distortion:
+ *      - clean: 8 second clips
+ *      - noisy: white noise 10 dB below the music
+ *      - quiet: 20 dB quieter
+ *      - loud: 12 dB louder, clipping in the 8 bit encoding
+ *      - short: clips cut to 3 seconds
+ * The report is one JSON object with the settings, the ingestion throughput, and per scenario the top 1 accuracy, the
+ * mean rank of the right song (maxResults + 1 when it is missing), the mean offset error of correct answers and latency
+ * percentiles. The same seed and settings always give the same catalog, clips and accuracy numbers.
+ */
+public class RegressionHarness {
+
+    private static final int MAX_RESULTS = 10;
+    private static final int FILE_RATE = 44100;
+
+    private final long seed;
+    private final int songCount;
+    private final int songSeconds;
+    private final int queryCount;
+    private final int threads;
+    private final boolean warmup;
+
+    /**
+     * Constructor.
+     * @param seed seed of the catalog and the clips
+     * @param songCount number of songs in the catalog
+     * @param songSeconds length of each song
+     * @param queryCount number of clips per scenario
+     * @param threads ingestion threads
+     * @param warmup whether to warm up the recognizer before timing queries
+     */
+    public RegressionHarness(long seed, int songCount, int songSeconds, int queryCount, int threads, boolean warmup) {
+        this.seed = seed;
+        this.songCount = songCount;
+        this.songSeconds = songSeconds;
+        this.queryCount = queryCount;
+        this.threads = threads;
+        this.warmup = warmup;
+    }
+
+    /**
+     * A distortion applied to every query clip.
+     */
+    private static class Scenario {
+        final String name;
+        final double clipSeconds;
+        final double gainDb;
+        final boolean noise;
+        final double noiseDb; // Noise level relative to the rms of the clip.
+
+        Scenario(String name, double clipSeconds, double gainDb, boolean noise, double noiseDb) {
+            this.name = name;
+            this.clipSeconds = clipSeconds;
+            this.gainDb = gainDb;
+            this.noise = noise;
+            this.noiseDb = noiseDb;
+        }
+    }
+
+    private static final Scenario[] SCENARIOS = {
+            new Scenario("clean", 8, 0, false, 0),
+            new Scenario("noisy", 8, 0, true, -10),
+            new Scenario("quiet", 8, -20, false, 0),
+            new Scenario("loud", 8, 12, false, 0),
+            new Scenario("short", 3, 0, false, 0),
+    };
+
+    /**
+     * Runs the harness.
+     * @return the report as JSON
+     * @throws Exception if ingestion fails
+     */
+    public String run() throws Exception {
+        SongDatabase db = new SongDatabase();
+        SongFingerprint songFingerprint = new SongFingerprint(db);
+        AudioFingerprinter rec = songFingerprint;
+        db.setFingerprinter(rec);
+
+        // Ingestion, timed from wav bytes to indexed postings.
+        AudioFormat fileFormat = new AudioFormat(FILE_RATE, 16, 2, true, false);
+        byte[][] wavs = new byte[songCount][];
+        for (int s = 0; s < songCount; s++) {
+            wavs[s] = wav(SyntheticAudio.encode(song(s), fileFormat), fileFormat);
+        }
+        int[] songIds = new int[songCount];
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        long ingestStart = System.nanoTime();
+        List<Future<Integer>> added = new ArrayList<>();
+        for (int s = 0; s < songCount; s++) {
+            int song = s;
+            added.add(workers.submit(() -> db.addSong("song" + song,
+                    db.fingerprint(db.getSamples(new ByteArrayInputStream(wavs[song]), "song" + song + ".wav")))));
+        }
+        for (int s = 0; s < songCount; s++) {
+            songIds[s] = added.get(s).get();
+        }
+        double ingestSeconds = (System.nanoTime() - ingestStart) / 1e9;
+        workers.shutdown();
+        long[] postings = new long[1];
+        db.forEachPostingList((hash, points) -> postings[0] += points.size());
+
+        String warmupReport = warmup ? new Warmup(songFingerprint, 10_000).run().getReport() : "off";
+
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format(Locale.ROOT, "  \"settings\": {\"seed\": %d, \"songs\": %d, \"songSeconds\": %d, "
+                        + "\"queriesPerScenario\": %d, \"maxResults\": %d, \"threads\": %d, \"analysisRate\": %d, "
+                        + "\"warmup\": %s},\n", seed, songCount, songSeconds, queryCount, MAX_RESULTS, threads,
+                db.getAnalysisRate(), quote(warmupReport)));
+        json.append(String.format(Locale.ROOT, "  \"ingestion\": {\"seconds\": %.3f, \"songsPerSecond\": %.1f, "
+                        + "\"audioSecondsPerSecond\": %.0f, \"postings\": %d},\n", ingestSeconds, songCount / ingestSeconds,
+                (double) songCount * songSeconds / ingestSeconds, postings[0]));
+        json.append("  \"scenarios\": {\n");
+        for (int i = 0; i < SCENARIOS.length; i++) {
+            json.append("    ").append(quote(SCENARIOS[i].name)).append(": ")
+                    .append(runScenario(rec, SCENARIOS[i], songIds))
+                    .append(i + 1 < SCENARIOS.length ? ",\n" : "\n");
+        }
+        json.append("  }\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Recognizes the clips of one scenario and returns its results as a JSON object.
+     */
+    private String runScenario(AudioFingerprinter rec, Scenario scenario, int[] songIds) {
+        Random random = new Random(seed * 31 + 1); // Same songs and positions in every scenario.
+        AudioFormat recordingFormat = new AudioFormat(FILE_RATE, 8, 1, true, true);
+        int correct = 0;
+        long rankSum = 0;
+        double offsetErrorSum = 0;
+        double[] latencies = new double[queryCount];
+        for (int q = 0; q < queryCount; q++) {
+            int s = random.nextInt(songCount);
+            double from = random.nextDouble() * (songSeconds - 8);
+            float[] clip = SyntheticAudio.clip(song(s), from, scenario.clipSeconds, FILE_RATE);
+            float gain = (float) Math.pow(10, scenario.gainDb / 20);
+            for (int i = 0; i < clip.length; i++) {
+                clip[i] *= gain;
+            }
+            if (scenario.noise) {
+                clip = SyntheticAudio.addNoise(clip, rms(clip) * Math.pow(10, scenario.noiseDb / 20), seed + q);
+            }
+            byte[] audio = SyntheticAudio.encode(clip, recordingFormat);
+
+            long start = System.nanoTime();
+            List<SongMatch> matches = rec.recognizeMatches(audio, MAX_RESULTS, 1);
+            latencies[q] = (System.nanoTime() - start) / 1e6;
+
+            int rank = MAX_RESULTS + 1;
+            for (int r = 0; r < matches.size(); r++) {
+                if (matches.get(r).getSongId() == songIds[s]) {
+                    rank = r + 1;
+                    break;
+                }
+            }
+            rankSum += rank;
+            if (rank == 1) {
+                correct++;
+                offsetErrorSum += Math.abs(matches.get(0).getOffsetSeconds() - from);
+            }
+        }
+        double[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "{\"clipSeconds\": %.1f, \"gainDb\": %.1f, \"noiseDb\": %s, "
+                        + "\"top1Accuracy\": %.4f, \"meanRank\": %.3f, \"meanOffsetErrorSeconds\": %.3f, "
+                        + "\"latencyMs\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"max\": %.3f}}",
+                scenario.clipSeconds, scenario.gainDb, scenario.noise ? String.format(Locale.ROOT, "%.1f", scenario.noiseDb) : "null",
+                (double) correct / queryCount, (double) rankSum / queryCount,
+                correct == 0 ? 0.0 : offsetErrorSum / correct,
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), sorted[sorted.length - 1]);
+    }
+
+    /**
+     * Generates song s of the catalog at the file sample rate. Songs are cheap to regenerate, so they are not kept.
+     */
+    private float[] song(int s) {
+        return SyntheticAudio.song(seed * 1_000_003 + s, songSeconds, FILE_RATE);
+    }
+
+    private static byte[] wav(byte[] pcm, AudioFormat format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(pcm.length + 64);
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), format, pcm.length / format.getFrameSize()),
+                AudioFileFormat.Type.WAVE, out);
+        return out.toByteArray();
+    }
+
+    private static double rms(float[] samples) {
+        double sum = 0;
+        for (float sample : samples) {
+            sum += sample * sample;
+        }
+        return samples.length == 0 ? 0 : Math.sqrt(sum / samples.length);
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        return sorted[(int) (p * (sorted.length - 1))];
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Runs the harness and prints the report, or writes it to a file.
+     * @param args optional settings as key=value: seed (default 1), songs (200), songSeconds (30), queries (200),
+     *             threads (one per core), warmup (true) and out (a file for the report, default standard output)
+     * @throws Exception if ingestion fails or the report can't be written
+     */
+    public static void main(String[] args) throws Exception {
+        long seed = 1;
+        int songs = 200;
+        int songSeconds = 30;
+        int queries = 200;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean warmup = true;
+        String out = null;
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                System.out.println("Usage: RegressionHarness [seed=1] [songs=200] [songSeconds=30] [queries=200] "
+                        + "[threads=n] [warmup=true] [out=report.json]");
+                return;
+            }
+            switch (kv[0]) {
+                case "seed": seed = Long.parseLong(kv[1]); break;
+                case "songs": songs = Integer.parseInt(kv[1]); break;
+                case "songSeconds": songSeconds = Math.max(9, Integer.parseInt(kv[1])); break;
+                case "queries": queries = Integer.parseInt(kv[1]); break;
+                case "threads": threads = Integer.parseInt(kv[1]); break;
+                case "warmup": warmup = Boolean.parseBoolean(kv[1]); break;
+                case "out": out = kv[1]; break;
+                default:
+                    System.out.println("Unknown setting " + kv[0]);
+                    return;
+            }
+        }
+        String report = new RegressionHarness(seed, songs, songSeconds, queries, threads, warmup).run();
+        if (out == null) {
+            System.out.print(report);
+        } else {
+            try (PrintWriter writer = new PrintWriter(new File(out), "UTF-8")) {
+                writer.print(report);
+            }
+            System.out.println("Wrote " + out);
+        }
+    }
+}
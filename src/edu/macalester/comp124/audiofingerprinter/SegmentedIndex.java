@@ -0,0 +1,627 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A posting index for catalogs too big for the heap, built like a log-structured merge tree.
+ * Postings are added to an in-memory buffer sized from a memory budget. When the buffer is full it is sorted by hash and
+ * flushed to an immutable segment file, without holding the index lock, while a second buffer takes new postings, and a
+ * background thread merges segments together whenever MERGE_FACTOR of them pile up. Lookups read the buffers and every
+ * segment, so the index can be queried while it is still being built.
+ * finish flushes the buffer and merges everything into a single segment. Postings can still be added afterwards; they
+ * start a new buffer and new segments, and the next finish compacts again. close is final.
+ *
+ * The postings themselves use a fixed amount of heap, the buffers, but the index is not entirely fixed: the sparse index
+ * of every segment stays in memory, 8 bytes per SPARSE_INTERVAL postings, so it grows with the catalog, as do the coarse
+ * index and song names SongDatabase keeps beside it.
+ *
+ * A segment file holds a header (magic number and posting count) followed by 16 byte (hash, song and time) postings sorted
+ * by hash. Only every SPARSE_INTERVAL-th hash of a segment is kept in memory, to find the block a lookup has to read.
+ */
+public class SegmentedIndex {
+
+    private static final int MAGIC = 0x41465331; // "AFS1"
+    private static final int HEADER_BYTES = 12;
+    private static final int ENTRY_BYTES = 16;
+    private static final int SPARSE_INTERVAL = 256;
+    private static final int MERGE_FACTOR = 4;
+    // Two buffers of hash, value, chain link and its share of the table, plus the copy a flush sorts.
+    private static final int BUFFERED_ENTRY_BYTES = 2 * (8 + 8 + 4 + 4) + 8 + 8;
+    private static final Comparator<DataPoint> BY_SONG = Comparator.comparingInt(DataPoint::getSongId);
+
+    private final File directory;
+    private final Object lock = new Object(); // Guards the buffers and the segment list.
+    private final Object mergeLock = new Object(); // Held for a whole merge, so two merges never take the same segments. Taken before lock.
+
+    // Postings are added to the active buffer. A full one becomes the flushing buffer, which lookups keep reading while
+    // it is written out without the lock, and the spare one takes its place. At most one flush runs at a time.
+    private Buffer active;
+    private Buffer flushing;
+    private Buffer spare;
+    private final long[] sortHashes; // Copy of the flushing buffer that is sorted and written. Used by one flush at a time.
+    private final long[] sortValues;
+    private IOException flushFailure;
+
+    private List<Segment> segments;
+    private boolean closed;
+    private final AtomicInteger flushes = new AtomicInteger();
+    private final AtomicInteger merges = new AtomicInteger();
+    private final Thread merger;
+
+    /**
+     * Constructor. Starts the background merger.
+     * @param directory where segment files are written. Created if it does not exist.
+     * @param memoryBudgetBytes heap to use for buffered postings
+     */
+    public SegmentedIndex(File directory, long memoryBudgetBytes) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new UncheckedIOException(new IOException("Unable to create segment directory " + directory));
+        }
+        this.directory = directory;
+        int bufferCapacity = (int) Math.max(1024, Math.min(Integer.MAX_VALUE / 2, memoryBudgetBytes / BUFFERED_ENTRY_BYTES));
+        this.active = new Buffer(bufferCapacity);
+        this.spare = new Buffer(bufferCapacity);
+        this.sortHashes = new long[bufferCapacity];
+        this.sortValues = new long[bufferCapacity];
+        this.segments = Collections.emptyList();
+        this.merger = new Thread(this::runMerger, "segment-merger");
+        this.merger.setDaemon(true);
+        this.merger.start();
+    }
+
+    /**
+     * Adds one posting. If the buffer is full it is flushed to a new segment first, outside the lock, so other threads
+     * keep adding and looking up meanwhile; they only wait if the next buffer fills before that flush is done.
+     * @param hash fingerprint hash
+     * @param songId song the hash was calculated in
+     * @param time slice of time the hash was calculated at
+     * @throws IllegalStateException if the index has been closed
+     * @throws UncheckedIOException if a segment could not be written
+     */
+    public void add(long hash, int songId, int time) {
+        Buffer full = null;
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("The index has been closed");
+                }
+                if (flushFailure != null) {
+                    throw new UncheckedIOException("An earlier flush failed", flushFailure);
+                }
+                if (!active.isFull()) {
+                    break;
+                }
+                if (flushing == null) {
+                    full = startFlush();
+                } else {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true; // The posting still has to go in; restore the interrupt afterwards.
+                    }
+                }
+            }
+            active.add(hash, PostingSort.pack(songId, time));
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (full != null) {
+            writeSegment(full);
+        }
+    }
+
+    /**
+     * Returns the datapoints of a hash from the buffers and all segments, sorted by song id like the in-memory index.
+     * @param hash
+     * @return the datapoints, or null if there are none
+     */
+    public List<DataPoint> get(long hash) {
+        List<DataPoint> points = new ArrayList<>();
+        List<Segment> snapshot;
+        synchronized (lock) {
+            active.lookup(hash, points);
+            if (flushing != null) {
+                flushing.lookup(hash, points);
+            }
+            snapshot = segments;
+            for (Segment segment : snapshot) {
+                segment.refs.incrementAndGet();
+            }
+        }
+        try {
+            for (Segment segment : snapshot) {
+                segment.lookup(hash, points);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (Segment segment : snapshot) {
+                segment.release();
+            }
+        }
+        if (points.isEmpty()) {
+            return null;
+        }
+        // Each segment is already in song order, so this only merges a few sorted runs and the buffers' postings.
+        points.sort(BY_SONG);
+        return points;
+    }
+
+    /**
+     * Flushes the buffer and merges all segments into one, so lookups read a single file. Postings added afterwards go to
+     * a new buffer and new segments.
+     */
+    public void finish() {
+        synchronized (mergeLock) {
+            Buffer full = null;
+            synchronized (lock) {
+                if (closed || !awaitFlush()) {
+                    return;
+                }
+                if (active.size > 0) {
+                    full = startFlush();
+                }
+            }
+            if (full != null) {
+                writeSegment(full);
+            }
+            List<Segment> all;
+            synchronized (lock) {
+                all = segments;
+            }
+            if (all.size() > 1) {
+                mergeAndReplace(all);
+            }
+        }
+    }
+
+    /**
+     * Stops the merger and deletes every segment file.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            merger.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mergeLock) { // Waits for a finish still merging on another thread.
+            synchronized (lock) {
+                awaitFlush(); // A flush in progress publishes its segment, which is deleted below with the rest.
+                for (Segment segment : segments) {
+                    segment.release();
+                }
+                segments = Collections.emptyList();
+                active.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of segments on disk.
+     * @return segment count
+     */
+    public int getSegmentCount() {
+        synchronized (lock) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * Returns the number of postings held in memory, including those of a flush still being written.
+     * @return buffered postings
+     */
+    public int getBufferedPostings() {
+        synchronized (lock) {
+            return active.size + (flushing == null ? 0 : flushing.size);
+        }
+    }
+
+    public int getFlushCount() {
+        return flushes.get();
+    }
+
+    public int getMergeCount() {
+        return merges.get();
+    }
+
+    /**
+     * Hands the active buffer to a flush and makes the spare one active. Called while holding lock, with no flush running.
+     * @return the buffer the caller must pass to writeSegment
+     */
+    private Buffer startFlush() {
+        Buffer full = active;
+        flushing = full;
+        active = spare;
+        spare = null;
+        return full;
+    }
+
+    /**
+     * Waits until no flush is running. Called while holding lock.
+     * @return false if interrupted while waiting, with the interrupt restored
+     */
+    private boolean awaitFlush() {
+        while (flushing != null) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sorts the flushing buffer and writes it out as a new segment without holding lock, then publishes the segment and
+     * gives the buffer back as the spare. Lookups read the flushing buffer until the segment replaces it.
+     * @param full the buffer startFlush returned
+     */
+    private void writeSegment(Buffer full) {
+        // Nothing writes to the flushing buffer, so it can be copied without the lock; lookups still use its chains.
+        int n = full.size;
+        System.arraycopy(full.hashes, 0, sortHashes, 0, n);
+        System.arraycopy(full.values, 0, sortValues, 0, n);
+        PostingSort.sort(sortHashes, sortValues, 0, n);
+        Segment segment = null;
+        IOException failure = null;
+        try (SegmentWriter writer = new SegmentWriter(newSegmentFile(), n)) {
+            for (int i = 0; i < n; i++) {
+                writer.write(sortHashes[i], sortValues[i]);
+            }
+            segment = writer.finish();
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (lock) {
+            if (segment != null) {
+                List<Segment> next = new ArrayList<>(segments);
+                next.add(segment);
+                segments = next;
+                flushes.incrementAndGet();
+            } else {
+                flushFailure = failure; // The postings are lost, so refuse more rather than answer lookups wrongly.
+            }
+            full.clear();
+            spare = full;
+            flushing = null;
+            lock.notifyAll();
+        }
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    /**
+     * Creates an empty file for a new segment. Names are unique in the directory, so a segment of an earlier index on the
+     * same directory, deleted once its last lookup releases it, can never be a file this index uses.
+     */
+    private File newSegmentFile() throws IOException {
+        return File.createTempFile("segment-", ".seg", directory);
+    }
+
+    /**
+     * Background loop merging the MERGE_FACTOR smallest segments whenever there are that many.
+     */
+    private void runMerger() {
+        while (true) {
+            synchronized (lock) {
+                while (!closed && segments.size() < MERGE_FACTOR) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            synchronized (mergeLock) {
+                List<Segment> toMerge;
+                synchronized (lock) {
+                    if (closed || segments.size() < MERGE_FACTOR) {
+                        continue; // A finish merged them in the meantime.
+                    }
+                    List<Segment> bySize = new ArrayList<>(segments);
+                    bySize.sort(Comparator.comparingLong(segment -> segment.count));
+                    toMerge = new ArrayList<>(bySize.subList(0, MERGE_FACTOR));
+                }
+                try {
+                    mergeAndReplace(toMerge);
+                } catch (UncheckedIOException e) {
+                    System.out.println(e.getMessage());
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges segments into a new one and swaps it in for them. The old files are deleted once no lookup uses them.
+     * Called while holding mergeLock.
+     * @param inputs segments to merge
+     */
+    private void mergeAndReplace(List<Segment> inputs) {
+        long total = 0;
+        for (Segment segment : inputs) {
+            total += segment.count;
+        }
+        Segment merged;
+        PriorityQueue<SegmentCursor> heap = new PriorityQueue<>();
+        try (SegmentWriter writer = new SegmentWriter(newSegmentFile(), total)) {
+            try {
+                for (Segment segment : inputs) {
+                    SegmentCursor cursor = new SegmentCursor(segment);
+                    if (cursor.advance()) {
+                        heap.add(cursor);
+                    } else {
+                        cursor.close();
+                    }
+                }
+                while (!heap.isEmpty()) {
+                    SegmentCursor cursor = heap.poll();
+                    writer.write(cursor.hash, cursor.value);
+                    if (cursor.advance()) {
+                        heap.add(cursor);
+                    } else {
+                        cursor.close();
+                    }
+                }
+            } finally {
+                for (SegmentCursor cursor : heap) {
+                    cursor.close();
+                }
+            }
+            merged = writer.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (lock) {
+            List<Segment> next = new ArrayList<>(segments);
+            next.removeAll(inputs);
+            next.add(merged);
+            segments = next;
+        }
+        for (Segment segment : inputs) {
+            segment.release();
+        }
+        merges.incrementAndGet();
+    }
+
+    /**
+     * Postings held in memory, chained by hash so lookups don't have to scan them.
+     */
+    private static class Buffer {
+        private final long[] hashes;
+        private final long[] values;
+        private final int[] next;
+        private final int[] heads;
+        private int size;
+
+        Buffer(int capacity) {
+            this.hashes = new long[capacity];
+            this.values = new long[capacity];
+            this.next = new int[capacity];
+            this.heads = new int[Integer.highestOneBit(capacity)];
+            Arrays.fill(heads, -1);
+        }
+
+        boolean isFull() {
+            return size == hashes.length;
+        }
+
+        void add(long hash, long value) {
+            int bucket = bucket(hash);
+            hashes[size] = hash;
+            values[size] = value;
+            next[size] = heads[bucket];
+            heads[bucket] = size;
+            size++;
+        }
+
+        void lookup(long hash, List<DataPoint> out) {
+            for (int i = heads[bucket(hash)]; i >= 0; i = next[i]) {
+                if (hashes[i] == hash) {
+                    out.add(new DataPoint(PostingSort.songId(values[i]), PostingSort.time(values[i])));
+                }
+            }
+        }
+
+        void clear() {
+            size = 0;
+            Arrays.fill(heads, -1);
+        }
+
+        private int bucket(long hash) {
+            return (int) (hash ^ (hash >>> 32)) & (heads.length - 1);
+        }
+    }
+
+    /**
+     * An immutable segment file and the sparse index used to look hashes up in it.
+     */
+    private static class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private final long count;
+        private final long[] sparseHashes; // Hash of every SPARSE_INTERVAL-th posting.
+        private final AtomicInteger refs = new AtomicInteger(1); // One for the index, one per lookup in progress.
+
+        Segment(File file, long count, long[] sparseHashes) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.count = count;
+            this.sparseHashes = sparseHashes;
+        }
+
+        void lookup(long hash, List<DataPoint> out) throws IOException {
+            // Start at the last block whose first hash is below the target, since a run of equal hashes can start there.
+            int block = Arrays.binarySearch(sparseHashes, hash);
+            if (block < 0) {
+                block = -block - 2;
+            } else {
+                while (block > 0 && sparseHashes[block - 1] == hash) {
+                    block--;
+                }
+                block--;
+            }
+            long entry = (long) Math.max(0, block) * SPARSE_INTERVAL;
+            ByteBuffer buffer = ByteBuffer.allocate(SPARSE_INTERVAL * ENTRY_BYTES);
+            while (entry < count) {
+                int n = (int) Math.min(SPARSE_INTERVAL, count - entry);
+                buffer.clear();
+                buffer.limit(n * ENTRY_BYTES);
+                long position = HEADER_BYTES + entry * ENTRY_BYTES;
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position + buffer.position());
+                    if (read < 0) {
+                        throw new EOFException("Segment is truncated: " + file);
+                    }
+                }
+                buffer.flip();
+                for (int i = 0; i < n; i++) {
+                    long h = buffer.getLong();
+                    long value = buffer.getLong();
+                    if (h > hash) {
+                        return;
+                    }
+                    if (h == hash) {
+                        out.add(new DataPoint(PostingSort.songId(value), PostingSort.time(value)));
+                    }
+                }
+                entry += n;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+                if (!file.delete()) {
+                    System.out.println("Unable to delete old segment " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes sorted postings to a segment file and collects its sparse index.
+     */
+    private static class SegmentWriter implements AutoCloseable {
+        private final File file;
+        private final DataOutputStream out;
+        private final long count;
+        private final long[] sparseHashes;
+        private long written;
+        private boolean done;
+
+        SegmentWriter(File file, long count) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            this.count = count;
+            this.sparseHashes = new long[(int) ((count + SPARSE_INTERVAL - 1) / SPARSE_INTERVAL)];
+            out.writeInt(MAGIC);
+            out.writeLong(count);
+        }
+
+        void write(long hash, long value) throws IOException {
+            if (written % SPARSE_INTERVAL == 0) {
+                sparseHashes[(int) (written / SPARSE_INTERVAL)] = hash;
+            }
+            out.writeLong(hash);
+            out.writeLong(value);
+            written++;
+        }
+
+        Segment finish() throws IOException {
+            out.close();
+            done = true;
+            if (written != count) {
+                throw new IOException("Expected " + count + " postings but wrote " + written + " to " + file);
+            }
+            return new Segment(file, count, sparseHashes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!done) {
+                out.close();
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads a segment sequentially for merging. Holds a reference so the file stays readable.
+     */
+    private static class SegmentCursor implements Comparable<SegmentCursor> {
+        private final Segment segment;
+        private final DataInputStream in;
+        private long remaining;
+        private long hash;
+        private long value;
+
+        SegmentCursor(Segment segment) throws IOException {
+            this.segment = segment;
+            segment.refs.incrementAndGet();
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 16));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                segment.release();
+                throw new IOException("Not a segment file: " + segment.file);
+            }
+            this.remaining = in.readLong();
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            hash = in.readLong();
+            value = in.readLong();
+            remaining--;
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+            segment.release();
+        }
+
+        @Override
+        public int compareTo(SegmentCursor o) {
+            int c = Long.compare(hash, o.hash);
+            return c != 0 ? c : Long.compare(value, o.value);
+        }
+    }
+}
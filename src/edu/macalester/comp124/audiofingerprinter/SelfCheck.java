@@ -0,0 +1,1444 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Deterministic checks of invariants the index, the file formats and the ingestion pipeline rely on. Every input is
+ * generated from fixed seeds with SyntheticAudio, so a failure reproduces on every run. Each check prints PASS or FAIL
+ * with the reason, and the process exits with status 1 if any check failed, so scripts and builds can run it:
+ *
+ *      java -cp <classes>:lib/* edu.macalester.comp124.audiofingerprinter.SelfCheck
+ *
+ * Checks:
+ *      - pipeline: a worker that throws an Error fails run instead of hanging it, a failing scan stops every worker, a
+ *        pipeline runs only once, and an interrupted load is left unfinished with the interrupt still set
+ *      - concurrency and the server: songs fingerprinted on many threads at once, sharing the pooled fft plans, get the
+ *        same hashes as one at a time, and the server answers an oversized upload with 413 from its headers alone
+ *      - early exit: a pruned single-result query returns the same song as a full scan for every minScore, including
+ *        queries barely above it
+ *      - catalog scanner: a nested tree yields every audio file exactly once and nothing else, also with a dangling link
+ *        and a link back to an ancestor, and an interrupted sink stops the scan
+ *      - shortlist: posting lists stay sorted by song id under concurrent inserts, and lookups during those inserts
+ *        never fail or see a list out of order; song sets stay sorted and unique, and a shortlisted query scores its
+ *        songs exactly like a full one while reading fewer postings
+ *      - segmented index: lookups return exactly the postings added, sorted by song id, while segments are flushed and
+ *        merged, after finish, and for songs appended after finish, and a posting stays visible while its buffer is
+ *        written out; two indexes in one directory keep their own files; a segmented database answers like an in-memory one
+ *      - fingerprint files: a gated fingerprint survives a write and read unchanged, damaged and old files are refused,
+ *        files made with other settings fail an import before anything is added, and exported paths that only differ in
+ *        '/' and '_' stay apart, in every shard split
+ *      - duplicates: copies of a song shifted by a known number of slices are clustered with it, with exactly those
+ *        shifts, unrelated songs are not, and merging maps clips of a copy onto the canonical song's time axis
+ *      - frame gate: it is off unless turned on, and a clip's slices are kept or dropped exactly like the same slices
+ *        of the whole song, even for a clip of a quiet passage
+ *      - speed tolerance: the fused search over speed factors finds the same song as one query per factor, at the
+ *        clip's speed
+ *      - warmup: it queries a scratch database through the live hasher and settings, and leaves the live songs, gate
+ *        counters, query stats and settings as they were
+ *      - decoding: 8 and 16 bit, mono and stereo, little and big endian pcm at different rates, and wav files, decode to
+ *        the same samples at the analysis rate
+ *      - results: typed matches name the right song at the right offset, in descending order, with confidence over
+ *        the hashed slices, and maxResults and minScore cut the same list
+ *      - regression harness: a small run still recognizes every clean clip at the right offset
+ *      - hashing: MixedHasher gives equal hashes exactly to equal quantized key points, all five bands count, and no key
+ *        point within the fft bins hashes to NO_HASH
+ */
+public class SelfCheck {
+
+    private static final int FILE_RATE = 44100;
+    private static final long TIMEOUT_MILLIS = 60_000;
+    private static final int MIN_FLUSHES = 8; // Segments a segmented index check must write, so the merger has work.
+
+    private int passed;
+    private int failed;
+
+    /**
+     * A check that throws if its invariant does not hold.
+     */
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs every check.
+     * @param args unused
+     */
+    public static void main(String[] args) {
+        SelfCheck checks = new SelfCheck();
+        checks.check("pipeline fails instead of hanging on a worker error", SelfCheck::pipelineStopsOnError);
+        checks.check("pipeline runs only once", SelfCheck::pipelineRunsOnce);
+        checks.check("pipeline stops its workers when the scan fails", SelfCheck::pipelineStopsWhenScanFails);
+        checks.check("interrupted load is not finished", SelfCheck::interruptedLoadIsNotFinished);
+        checks.check("early exit returns the same top match", SelfCheck::earlyExitKeepsTopMatch);
+        checks.check("catalog scanner finds every audio file once", SelfCheck::scannerFindsEveryFileOnce);
+        checks.check("catalog scanner survives broken and cyclic links", SelfCheck::scannerSurvivesBadLinks);
+        checks.check("catalog scanner stops when the sink is interrupted", SelfCheck::scannerStopsOnInterrupt);
+        checks.check("concurrent fingerprints match sequential ones", SelfCheck::concurrentFingerprintsMatch);
+        checks.check("server refuses oversized uploads from the headers", SelfCheck::serverRefusesOversizedUploads);
+        checks.check("song sets stay sorted and unique", SelfCheck::songSetsStaySorted);
+        checks.check("posting lists stay sorted by song id", SelfCheck::postingListsStaySorted);
+        checks.check("queries read whole posting lists while songs are added", SelfCheck::queriesDuringInserts);
+        checks.check("shortlisted queries score like full ones", SelfCheck::shortlistScoresLikeFullScan);
+        checks.check("segmented index returns every posting after merges", SelfCheck::segmentedIndexKeepsPostings);
+        checks.check("segmented indexes share a directory and flush while read", SelfCheck::segmentedIndexesShareDirectory);
+        checks.check("segmented database answers like an in-memory one", SelfCheck::segmentedDatabaseMatchesMemory);
+        checks.check("fingerprint files round trip", SelfCheck::fingerprintFileRoundTrip);
+        checks.check("damaged and old fingerprint files are refused", SelfCheck::fingerprintFileRejectsBadFiles);
+        checks.check("imports refuse files made with other settings", SelfCheck::importRejectsOtherSettings);
+        checks.check("exported fingerprints keep distinct paths apart", SelfCheck::exportKeepsPathsApart);
+        checks.check("duplicate clusters have the right time shifts", SelfCheck::duplicatesHaveKnownShifts);
+        checks.check("frame gate is off by default", SelfCheck::frameGateOffByDefault);
+        checks.check("frame gate judges a clip like its song", SelfCheck::frameGateJudgesClipLikeSong);
+        checks.check("mixed hashes keep key points apart and never collide with NO_HASH", SelfCheck::mixedHashesKeepFieldsApart);
+        checks.check("fused speed search finds the song independent queries find", SelfCheck::fusedSpeedSearchMatchesIndependent);
+        checks.check("regression harness keeps its clean accuracy", SelfCheck::harnessKeepsCleanAccuracy);
+        checks.check("typed matches follow maxResults and minScore", SelfCheck::matchesFollowCutoffs);
+        checks.check("pcm formats decode to the same samples", SelfCheck::pcmFormatsDecodeAlike);
+        checks.check("warmup runs on a copy and leaves the live recognizer alone", SelfCheck::warmupLeavesLiveAlone);
+        System.out.printf("%d passed, %d failed%n", checks.passed, checks.failed);
+        if (checks.failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void check(String name, Check check) {
+        long start = System.nanoTime();
+        try {
+            check.run();
+            passed++;
+            System.out.printf("PASS %s (%.0fms)%n", name, (System.nanoTime() - start) / 1e6);
+        } catch (Throwable e) {
+            failed++;
+            System.out.println("FAIL " + name + ": " + e);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    private static void expect(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * A database whose fingerprinting dies with an Error partway through the catalog must make run throw that Error
+     * within the timeout, even with queues of one item that fill up as soon as a stage stops taking work.
+     */
+    private static void pipelineStopsOnError() throws Exception {
+        File directory = catalog(12);
+        SongDatabase db = new SongDatabase() {
+            private int fingerprinted;
+
+            @Override
+            public synchronized Fingerprint fingerprint(float[] samples) {
+                if (++fingerprinted == 3) {
+                    throw new OutOfMemoryError("simulated");
+                }
+                return super.fingerprint(samples);
+            }
+        };
+        db.setFingerprinter(new SongFingerprint(db));
+        IngestionPipeline pipeline = new IngestionPipeline(db, 2, 2, 1, 1);
+        Throwable[] thrown = new Throwable[1];
+        Thread runner = new Thread(() -> {
+            try {
+                pipeline.run(directory);
+            } catch (Throwable e) {
+                thrown[0] = e;
+            }
+        }, "self-check pipeline");
+        runner.start();
+        runner.join(TIMEOUT_MILLIS);
+        expect(!runner.isAlive(), "run still blocked after " + TIMEOUT_MILLIS + "ms");
+        expect(thrown[0] instanceof OutOfMemoryError, "run ended with " + thrown[0] + " instead of the worker's Error");
+        deleteAll(directory);
+    }
+
+    /**
+     * A scanner that throws must make run throw the same exception and stop every worker, instead of leaving them waiting
+     * for files that never come.
+     */
+    private static void pipelineStopsWhenScanFails() throws Exception {
+        File directory = catalog(2);
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        CatalogScanner failing = new CatalogScanner() {
+            @Override
+            public int scan(File root, Sink sink) {
+                throw new IllegalStateException("simulated scan failure");
+            }
+        };
+        IngestionPipeline pipeline = new IngestionPipeline(db, failing, 2, 2, 1, 4);
+        try {
+            pipeline.run(directory);
+            throw new AssertionError("run returned although the scan failed");
+        } catch (IllegalStateException e) {
+            expect("simulated scan failure".equals(e.getMessage()), "run threw " + e + " instead of the scan's exception");
+        }
+        List<String> running = awaitIngestWorkers();
+        expect(running.isEmpty(), "workers still running: " + running);
+        deleteAll(directory);
+    }
+
+    /**
+     * Waits up to TIMEOUT_MILLIS for every pipeline worker thread to end.
+     * @return names of the workers still alive
+     */
+    private static List<String> awaitIngestWorkers() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            List<String> names = new ArrayList<>();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.isAlive() && thread.getName().startsWith("ingest-")) {
+                    names.add(thread.getName());
+                }
+            }
+            if (names.isEmpty() || System.currentTimeMillis() > deadline) {
+                return names;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A load on an interrupted thread must give up with the interrupt flag still set and without calling finishBuild, so
+     * a canceled load is not compacted as if it were complete.
+     */
+    private static void interruptedLoadIsNotFinished() throws Exception {
+        File directory = catalog(4);
+        AtomicBoolean finished = new AtomicBoolean();
+        SongDatabase db = new SongDatabase() {
+            @Override
+            public void finishBuild() {
+                finished.set(true);
+                super.finishBuild();
+            }
+        };
+        db.setFingerprinter(new SongFingerprint(db));
+        boolean[] stillInterrupted = new boolean[1];
+        Thread loader = new Thread(() -> {
+            Thread.currentThread().interrupt();
+            db.loadDatabase(directory);
+            stillInterrupted[0] = Thread.currentThread().isInterrupted();
+        }, "self-check load");
+        loader.start();
+        loader.join(TIMEOUT_MILLIS);
+        expect(!loader.isAlive(), "load still running after " + TIMEOUT_MILLIS + "ms");
+        expect(stillInterrupted[0], "loadDatabase cleared the interrupt");
+        expect(!finished.get(), "finishBuild ran after an interrupted load");
+        awaitIngestWorkers(); // A stopped worker may still be decoding its last file.
+        deleteAll(directory);
+    }
+
+    /**
+     * A pipeline ingests a catalog once; running it again must be refused rather than reuse its finished stages.
+     */
+    private static void pipelineRunsOnce() throws Exception {
+        File directory = catalog(4);
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        IngestionPipeline pipeline = new IngestionPipeline(db, 1, 1, 1, 4);
+        pipeline.run(directory);
+        expect(db.getSongCount() == 4, db.getSongCount() + " songs ingested instead of 4");
+        try {
+            pipeline.run(directory);
+            throw new AssertionError("second run was accepted");
+        } catch (IllegalStateException expected) {
+            // Refused, as it should be.
+        }
+        deleteAll(directory);
+    }
+
+    /**
+     * Queries made of a few slices of a song's own hashes, from 3 to 12 slices with the rest dropped, and noisy clips of
+     * catalog songs and of unknown songs, are scored with and without early exit for one result, over a range of
+     * minScore values. Both must return the same song, or both nothing: pruning may only stop once the leader is certain
+     * to win and has reached minScore.
+     */
+    private static void earlyExitKeepsTopMatch() throws Exception {
+        SongDatabase db = syntheticDatabase(20, 4);
+        SongFingerprint rec = new SongFingerprint(db);
+        List<Fingerprint> queries = new ArrayList<>();
+        for (int s = 0; s < 20; s += 3) {
+            Fingerprint song = db.fingerprint(SyntheticAudio.song(s, 20, db.getAnalysisRate()));
+            for (int slices = 3; slices <= 12; slices++) {
+                long[] hashes = new long[40];
+                long[] coarseHashes = new long[40];
+                Arrays.fill(hashes, FingerprintFile.NO_HASH);
+                Arrays.fill(coarseHashes, FingerprintFile.NO_HASH);
+                for (int t = 0; t < slices; t++) {
+                    hashes[t * 3] = song.getHashes()[60 + t * 3];
+                    coarseHashes[t * 3] = song.getCoarseHashes()[60 + t * 3];
+                }
+                queries.add(new Fingerprint(hashes, coarseHashes));
+            }
+            queries.add(rec.queryFingerprint(clip(db, s)));
+            queries.add(rec.queryFingerprint(SyntheticAudio.addNoise(
+                    SyntheticAudio.song(500 + s, 6, db.getAnalysisRate()), 0.01, s))); // Not in the catalog.
+        }
+        int[] ones = new int[queries.size()];
+        Arrays.fill(ones, 1);
+        for (int minScore : new int[]{1, 2, 4, 6, 10, 25, 60}) {
+            int[] minScores = new int[queries.size()];
+            Arrays.fill(minScores, minScore);
+            rec.setEarlyExit(false);
+            List<List<SongMatch>> full = rec.recognizeBatch(queries, ones, minScores);
+            rec.setEarlyExit(true);
+            List<List<SongMatch>> pruned = rec.recognizeBatch(queries, ones, minScores);
+            for (int q = 0; q < queries.size(); q++) {
+                List<SongMatch> want = full.get(q);
+                List<SongMatch> got = pruned.get(q);
+                expect(want.size() == got.size() && (want.isEmpty() || want.get(0).getSongId() == got.get(0).getSongId()),
+                        "query " + q + " with minScore " + minScore + " returned " + got + " with early exit, "
+                                + want + " without");
+            }
+        }
+    }
+
+    /**
+     * A tree of nested directories holding wav files, upper case extensions, other files and a text file named like an
+     * mp3 must yield exactly the wav files, each once, with scan counting them.
+     */
+    private static void scannerFindsEveryFileOnce() throws Exception {
+        File root = catalog(3);
+        Set<File> expected = new HashSet<>();
+        for (File file : root.listFiles()) {
+            expected.add(file.getAbsoluteFile());
+        }
+        File nested = new File(root, "a/b/c");
+        expect(nested.mkdirs(), "unable to create " + nested);
+        for (String name : new String[]{"a/one.wav", "a/b/two.WAV", "a/b/c/three.wav"}) {
+            File file = new File(root, name);
+            Files.copy(new File(root, "song0.wav").toPath(), file.toPath());
+            expected.add(file.getAbsoluteFile());
+        }
+        Files.write(new File(root, "a/b/notes.txt").toPath(), "not audio".getBytes("UTF-8"));
+        Files.write(new File(root, "a/fake.mp3").toPath(), "not audio either".getBytes("UTF-8"));
+        expect(new File(root, "a/b/empty").mkdir(), "unable to create an empty directory");
+
+        List<File> found = new ArrayList<>();
+        int count = new CatalogScanner().scan(root, file -> {
+            synchronized (found) {
+                found.add(file.getAbsoluteFile());
+            }
+        });
+        expect(found.size() == expected.size() && new HashSet<>(found).equals(expected),
+                "found " + found + ", expected " + expected);
+        expect(count == expected.size(), "scan counted " + count + " files, expected " + expected.size());
+        deleteAll(root);
+    }
+
+    /**
+     * A dangling link sorted between two wav files must not hide them, and a link from a/loop back to the root must not
+     * make the scan list anything twice. Skipped where the file system has no symbolic links.
+     */
+    private static void scannerSurvivesBadLinks() throws Exception {
+        File root = catalog(1);
+        File a = new File(root, "a");
+        expect(a.mkdir(), "unable to create " + a);
+        Set<File> expected = new HashSet<>();
+        expected.add(new File(root, "song0.wav").getAbsoluteFile());
+        for (String name : new String[]{"one.wav", "zzz.wav"}) {
+            File file = new File(a, name);
+            Files.copy(new File(root, "song0.wav").toPath(), file.toPath());
+            expected.add(file.getAbsoluteFile());
+        }
+        try {
+            Files.createSymbolicLink(new File(a, "broken.wav").toPath(), new File(root, "missing.wav").toPath());
+            Files.createSymbolicLink(new File(a, "loop").toPath(), root.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            System.out.println("No symbolic links here, skipped: " + e);
+            deleteAll(root);
+            return;
+        }
+        List<File> found = new ArrayList<>();
+        new CatalogScanner().scan(root, file -> {
+            synchronized (found) {
+                found.add(file.getAbsoluteFile());
+            }
+        });
+        expect(found.size() == expected.size() && new HashSet<>(found).equals(expected),
+                "found " + found + ", expected " + expected);
+        Files.delete(new File(a, "loop").toPath());
+        Files.delete(new File(a, "broken.wav").toPath());
+        deleteAll(root);
+    }
+
+    /**
+     * A sink that is interrupted, like the pipeline's when ingestion stops, must end the scan with InterruptedException.
+     */
+    private static void scannerStopsOnInterrupt() throws Exception {
+        File root = catalog(6);
+        int[] accepted = new int[1];
+        try {
+            new CatalogScanner(new HashSet<>(Collections.singletonList("wav")), false, 1).scan(root, file -> {
+                accepted[0]++;
+                throw new InterruptedException("stop");
+            });
+            throw new AssertionError("scan finished despite the interrupted sink");
+        } catch (InterruptedException expected) {
+            expect(accepted[0] == 1, "sink called " + accepted[0] + " times after being interrupted");
+        }
+        deleteAll(root);
+    }
+
+    /**
+     * Fingerprints eight songs of different lengths 200 times over on 16 threads, so fft plans are borrowed and returned
+     * under contention, and compares every result with the song's fingerprint made on one thread.
+     */
+    private static void concurrentFingerprintsMatch() throws Exception {
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        float[][] songs = new float[8][];
+        long[][] sequential = new long[songs.length][];
+        for (int s = 0; s < songs.length; s++) {
+            songs[s] = SyntheticAudio.song(310 + s, 5 + s, db.getAnalysisRate());
+            sequential[s] = db.fingerprint(songs[s]).getHashes();
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(16);
+        List<Future<Boolean>> same = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int s = i % songs.length;
+            same.add(workers.submit(() -> Arrays.equals(db.fingerprint(songs[s]).getHashes(), sequential[s])));
+        }
+        int differing = 0;
+        for (Future<Boolean> f : same) {
+            if (!f.get()) {
+                differing++;
+            }
+        }
+        workers.shutdown();
+        expect(differing == 0, differing + " of 200 concurrent fingerprints differ from the sequential ones");
+    }
+
+    /**
+     * Sends only the headers of a 40 MiB upload. The server must answer 413 without waiting for the body, and still
+     * recognize a normal wav clip afterwards.
+     */
+    private static void serverRefusesOversizedUploads() throws Exception {
+        SongDatabase db = syntheticDatabase(4, 2);
+        SongFingerprint rec = new SongFingerprint(db);
+        RecognitionServer server = new RecognitionServer(rec, 4, 5, 4, 1);
+        server.start(0);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            socket.setSoTimeout((int) TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /recognize HTTP/1.1\r\nHost: localhost\r\nContent-Type: audio/wav\r\n"
+                    + "Content-Length: " + (40 << 20) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            StringBuilder statusLine = new StringBuilder();
+            for (int c = in.read(); c != -1 && c != '\n'; c = in.read()) {
+                statusLine.append((char) c);
+            }
+            expect(statusLine.toString().startsWith("HTTP/1.1 413"), "oversized upload answered with " + statusLine);
+
+            AudioFormat format = new AudioFormat(FILE_RATE, 16, 1, true, false);
+            byte[] pcm = SyntheticAudio.encode(SyntheticAudio.clip(SyntheticAudio.song(2, 20, FILE_RATE), 5, 6, FILE_RATE), format);
+            ByteArrayOutputStream wav = new ByteArrayOutputStream();
+            AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), format, pcm.length / format.getFrameSize()),
+                    AudioFileFormat.Type.WAVE, wav);
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort()
+                    + "/recognize?maxResults=1").openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "audio/wav");
+            connection.getOutputStream().write(wav.toByteArray());
+            expect(connection.getResponseCode() == 200, "normal clip answered with " + connection.getResponseCode());
+            String response = new String(readAllBytes(connection.getInputStream()), StandardCharsets.UTF_8);
+            expect(response.contains("\"song2\""), "clip of song2 answered with " + response);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static byte[] readAllBytes(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+            bytes.write(buffer, 0, n);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Random adds and duplicate merges must leave a SongSet holding exactly the distinct ids, in ascending order.
+     */
+    private static void songSetsStaySorted() {
+        Random random = new Random(32);
+        SongSet set = new SongSet();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < 5000; i++) {
+            int id = i % 3 == 0 ? random.nextInt(2000) : i; // Mostly increasing, like ingestion, with some out of order.
+            set.add(id);
+            expected.add(id);
+        }
+        expectSame(set, expected);
+        int[] canonicalOf = new int[6000];
+        for (int id = 0; id < canonicalOf.length; id++) {
+            canonicalOf[id] = id % 7 == 0 ? id / 7 : id;
+        }
+        set.replaceAll(canonicalOf);
+        TreeSet<Integer> merged = new TreeSet<>();
+        for (int id : expected) {
+            merged.add(canonicalOf[id]);
+        }
+        expectSame(set, merged);
+        set.trim();
+        expectSame(set, merged);
+    }
+
+    private static void expectSame(SongSet set, TreeSet<Integer> expected) {
+        List<Integer> ids = new ArrayList<>();
+        set.forEach(ids::add);
+        expect(ids.equals(new ArrayList<>(expected)), "song set holds " + ids.size() + " ids, expected "
+                + expected.size() + " distinct ids in ascending order");
+        expect(set.size() == expected.size(), "size " + set.size() + " instead of " + expected.size());
+        for (int id = 0; id < 6000; id += 13) {
+            expect(set.contains(id) == expected.contains(id), "contains(" + id + ") is wrong");
+        }
+    }
+
+    /**
+     * Songs added from several threads at once, and imported songs on top, must leave every posting list sorted by song
+     * id, which shortlisted scoring depends on to skip between candidates.
+     */
+    private static void postingListsStaySorted() throws Exception {
+        SongDatabase db = syntheticDatabase(40, 4);
+        File directory = Files.createTempDirectory("selfcheck").toFile();
+        for (int s = 0; s < 5; s++) {
+            float[] song = SyntheticAudio.song(1000 + s, 20, db.getAnalysisRate());
+            new FingerprintFile("imported" + s, db.getFingerprintSettings(), db.fingerprint(song))
+                    .write(new File(directory, "imported" + s + "." + FingerprintFile.EXTENSION));
+        }
+        expect(db.importFingerprints(directory) == 5, "fingerprint files not imported");
+        deleteAll(directory);
+        long[] unsorted = new long[1];
+        db.forEachPostingList((hash, points) -> {
+            for (int i = 1; i < points.size(); i++) {
+                if (points.get(i - 1).getSongId() > points.get(i).getSongId()) {
+                    unsorted[0]++;
+                    return;
+                }
+            }
+        });
+        expect(unsorted[0] == 0, unsorted[0] + " posting lists are not sorted by song id");
+    }
+
+    /**
+     * Adds one fingerprint under many names from two threads, so every posting list it uses keeps growing, while two
+     * other threads look its hashes up and walk the lists the way scoring does. Lookups must never fail or see a list out
+     * of song order, and afterwards every list must hold one posting per copy and occurrence.
+     */
+    private static void queriesDuringInserts() throws Exception {
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        Fingerprint fingerprint = db.fingerprint(SyntheticAudio.song(311, 10, db.getAnalysisRate()));
+        Map<Long, Integer> occurrences = new HashMap<>();
+        for (long hash : fingerprint.getHashes()) {
+            if (hash != FingerprintFile.NO_HASH) {
+                occurrences.merge(hash, 1, Integer::sum);
+            }
+        }
+        int copies = 200;
+        AtomicBoolean adding = new AtomicBoolean(true);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int w = 0; w < 2; w++) {
+                int writer = w;
+                writers.add(threads.submit(() -> {
+                    for (int c = 0; c < copies; c++) {
+                        db.addSong("copy" + writer + "-" + c, fingerprint);
+                    }
+                }));
+            }
+            List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 2; r++) {
+                readers.add(threads.submit(() -> {
+                    while (adding.get()) {
+                        for (long hash : occurrences.keySet()) {
+                            List<DataPoint> points = db.getMatchingPoints(hash);
+                            int previous = -1;
+                            for (DataPoint d : points == null ? Collections.<DataPoint>emptyList() : points) {
+                                expect(d.getSongId() >= previous, "posting list out of song order during inserts");
+                                previous = d.getSongId();
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            try {
+                for (Future<?> writer : writers) {
+                    writer.get();
+                }
+                adding.set(false);
+                for (Future<?> reader : readers) {
+                    reader.get();
+                }
+            } catch (ExecutionException e) {
+                throw new AssertionError(String.valueOf(e.getCause()), e.getCause());
+            }
+        } finally {
+            adding.set(false);
+            threads.shutdown();
+        }
+        for (Map.Entry<Long, Integer> entry : occurrences.entrySet()) {
+            List<DataPoint> points = db.getMatchingPoints(entry.getKey());
+            int want = 2 * copies * entry.getValue();
+            expect(points != null && points.size() == want, (points == null ? 0 : points.size())
+                    + " postings for a hash instead of " + want);
+        }
+    }
+
+    /**
+     * The true song of a clip is always on its shortlist here, so it must get the same best offset and match count as
+     * without a shortlist, while the query reads fewer posting list entries.
+     */
+    private static void shortlistScoresLikeFullScan() throws Exception {
+        int songs = 40;
+        SongDatabase db = syntheticDatabase(songs, 4);
+        SongFingerprint rec = new SongFingerprint(db);
+        rec.setEarlyExit(false);
+        long[] read = new long[2];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int s = 0; s < songs; s++) {
+                float[] clip = clip(db, s);
+                rec.setShortlistSize(0);
+                List<SongMatch> full = rec.recognizeMatches(clip, 1, 1);
+                rec.setShortlistSize(pass == 0 ? 0 : 5);
+                long before = rec.getPostingsScanned();
+                List<SongMatch> matches = rec.recognizeMatches(clip, 1, 1);
+                read[pass] += rec.getPostingsScanned() - before;
+                expect(!matches.isEmpty() && matches.get(0).getSongName().equals("song" + s),
+                        "clip of song" + s + " recognized as " + matches);
+                expect(matches.get(0).getMatchCount() == full.get(0).getMatchCount()
+                                && matches.get(0).getOffsetSeconds() == full.get(0).getOffsetSeconds(),
+                        "song" + s + " scored " + matches.get(0).getMatchCount() + " with the shortlist and "
+                                + full.get(0).getMatchCount() + " without");
+            }
+        }
+        expect(read[1] < read[0], "shortlisted queries read " + read[1] + " entries, full queries " + read[0]);
+    }
+
+    /**
+     * Adds random postings to a SegmentedIndex with the smallest buffer, so it flushes about a hundred segments that the
+     * merger combines, and compares every lookup with a plain map of the same postings: before finish, after finish
+     * compacted the segments, after more songs were appended, and after a second finish. close must delete the segment
+     * files and refuse further postings.
+     */
+    private static void segmentedIndexKeepsPostings() throws Exception {
+        File directory = Files.createTempDirectory("selfcheck").toFile();
+        SegmentedIndex index = new SegmentedIndex(directory, 0);
+        Map<Long, List<DataPoint>> expected = new HashMap<>();
+        Random random = new Random(34);
+        int hashes = 4000;
+        addRandomPostings(index, expected, random, 0, 50, hashes);
+        expectSameLookups(index, expected, hashes, "while building");
+        expect(index.getFlushCount() > MIN_FLUSHES, "only " + index.getFlushCount() + " flushes");
+        index.finish();
+        expect(index.getSegmentCount() == 1, index.getSegmentCount() + " segments after finish");
+        expect(index.getMergeCount() > 1, "only " + index.getMergeCount() + " merges");
+        expectSameLookups(index, expected, hashes, "after finish");
+        addRandomPostings(index, expected, random, 50, 60, hashes);
+        expectSameLookups(index, expected, hashes, "after appending");
+        index.finish();
+        expect(index.getSegmentCount() == 1 && index.getBufferedPostings() == 0,
+                index.getSegmentCount() + " segments and " + index.getBufferedPostings() + " buffered after the second finish");
+        expectSameLookups(index, expected, hashes, "after the second finish");
+        index.close();
+        String[] left = directory.list();
+        expect(left != null && left.length == 0, "segment files left after close: " + Arrays.toString(left));
+        try {
+            index.add(1, 1, 1);
+            throw new AssertionError("add accepted after close");
+        } catch (IllegalStateException expectedRefusal) {
+            // Refused, as it should be.
+        }
+        deleteAll(directory);
+    }
+
+    /**
+     * Builds two SegmentedIndexes in one directory, like a second enableSegmentedBuild after a clear, while another thread
+     * keeps looking up a posting added first, which must stay visible through every flush. Neither index may overwrite
+     * the other's segments, and closing the first must leave the second's files alone.
+     */
+    private static void segmentedIndexesShareDirectory() throws Exception {
+        File directory = Files.createTempDirectory("selfcheck").toFile();
+        SegmentedIndex first = new SegmentedIndex(directory, 0);
+        Map<Long, List<DataPoint>> firstExpected = new HashMap<>();
+        int hashes = 4000;
+        addRandomPostings(first, firstExpected, new Random(341), 0, 10, hashes);
+        first.finish();
+        SegmentedIndex second = new SegmentedIndex(directory, 0);
+        Map<Long, List<DataPoint>> secondExpected = new HashMap<>();
+        long watched = hashes * 0x9E3779B97F4A7C15L; // Never added by addRandomPostings.
+        second.add(watched, 99, 7);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> lookups = reader.submit(() -> {
+                int n = 0;
+                while (writing.get()) {
+                    List<DataPoint> got = second.get(watched);
+                    expect(got != null && got.size() == 1 && got.get(0).getSongId() == 99,
+                            "the first posting was " + got + " during a flush");
+                    n++;
+                }
+                return n;
+            });
+            addRandomPostings(second, secondExpected, new Random(342), 0, 30, hashes);
+            writing.set(false);
+            lookups.get(); // Rethrows the reader's failure.
+        } catch (ExecutionException e) {
+            throw new AssertionError(e.getCause().getMessage(), e.getCause());
+        } finally {
+            writing.set(false);
+            reader.shutdown();
+        }
+        expect(second.getFlushCount() > MIN_FLUSHES, "only " + second.getFlushCount() + " flushes");
+        expectSameLookups(first, firstExpected, hashes, "first index beside the second");
+        first.close();
+        second.finish();
+        secondExpected.put(watched, new ArrayList<>(Collections.singletonList(new DataPoint(99, 7))));
+        expectSameLookups(second, secondExpected, hashes, "second index after the first closed");
+        String[] left = directory.list();
+        expect(left != null && left.length == second.getSegmentCount(),
+                "files " + Arrays.toString(left) + " for " + second.getSegmentCount() + " segments");
+        second.close();
+        deleteAll(directory);
+    }
+
+    /**
+     * Adds 2000 postings for each song in [fromSong, toSong), in song order like ingestion, to the index and the map.
+     */
+    private static void addRandomPostings(SegmentedIndex index, Map<Long, List<DataPoint>> expected, Random random,
+                                          int fromSong, int toSong, int hashes) {
+        for (int song = fromSong; song < toSong; song++) {
+            for (int time = 0; time < 2000; time++) {
+                long hash = random.nextInt(hashes) * 0x9E3779B97F4A7C15L; // Spread over the whole long range.
+                index.add(hash, song, time);
+                expected.computeIfAbsent(hash, h -> new ArrayList<>()).add(new DataPoint(song, time));
+            }
+        }
+    }
+
+    private static void expectSameLookups(SegmentedIndex index, Map<Long, List<DataPoint>> expected, int hashes,
+                                          String when) {
+        Comparator<DataPoint> bySongAndTime = Comparator.comparingInt(DataPoint::getSongId).thenComparingInt(DataPoint::getTime);
+        for (int i = 0; i <= hashes; i++) { // The last hash was never added.
+            long hash = i * 0x9E3779B97F4A7C15L;
+            List<DataPoint> want = expected.get(hash);
+            List<DataPoint> got = index.get(hash);
+            if (want == null) {
+                expect(got == null, when + ": postings returned for a hash never added");
+                continue;
+            }
+            expect(got != null && got.size() == want.size(), when + ": " + (got == null ? 0 : got.size())
+                    + " postings for hash " + hash + " instead of " + want.size());
+            for (int p = 1; p < got.size(); p++) {
+                expect(got.get(p - 1).getSongId() <= got.get(p).getSongId(), when + ": postings not sorted by song id");
+            }
+            List<DataPoint> sorted = new ArrayList<>(got);
+            sorted.sort(bySongAndTime);
+            List<DataPoint> wanted = new ArrayList<>(want);
+            wanted.sort(bySongAndTime);
+            for (int p = 0; p < sorted.size(); p++) {
+                expect(bySongAndTime.compare(sorted.get(p), wanted.get(p)) == 0, when + ": hash " + hash + " returned ("
+                        + sorted.get(p).getSongId() + ", " + sorted.get(p).getTime() + ") instead of ("
+                        + wanted.get(p).getSongId() + ", " + wanted.get(p).getTime() + ")");
+            }
+        }
+    }
+
+    /**
+     * Loads the same synthetic songs into an in-memory and a segmented database, calling finishBuild on the segmented one
+     * partway through, and expects identical posting lists for every hash and identical answers to clips, including
+     * clips of the songs added after finishBuild.
+     */
+    private static void segmentedDatabaseMatchesMemory() throws Exception {
+        int songs = 16;
+        File directory = Files.createTempDirectory("selfcheck").toFile();
+        SongDatabase memory = new SongDatabase();
+        memory.setFingerprinter(new SongFingerprint(memory));
+        SongDatabase segmented = new SongDatabase();
+        segmented.setFingerprinter(new SongFingerprint(segmented));
+        segmented.enableSegmentedBuild(directory, 0);
+        for (int s = 0; s < songs; s++) {
+            float[] song = SyntheticAudio.song(s, 20, memory.getAnalysisRate());
+            memory.addSong("song" + s, memory.fingerprint(song));
+            segmented.addSong("song" + s, segmented.fingerprint(song));
+            if (s == songs / 2) {
+                segmented.finishBuild();
+            }
+        }
+        memory.finishBuild();
+        segmented.finishBuild();
+        List<Long> hashes = new ArrayList<>();
+        memory.forEachPostingList((hash, points) -> hashes.add(hash));
+        for (long hash : hashes) {
+            List<DataPoint> want = memory.getMatchingPoints(hash);
+            List<DataPoint> got = segmented.getMatchingPoints(hash);
+            expect(got != null && got.size() == want.size(), "hash " + hash + " has " + (got == null ? 0 : got.size())
+                    + " postings in the segmented database, " + want.size() + " in memory");
+            for (int p = 0; p < want.size(); p++) {
+                expect(got.get(p).getSongId() == want.get(p).getSongId(),
+                        "hash " + hash + " lists songs in another order in the segmented database");
+            }
+        }
+        SongFingerprint memoryRec = new SongFingerprint(memory);
+        SongFingerprint segmentedRec = new SongFingerprint(segmented);
+        for (int s = 0; s < songs; s++) {
+            float[] clip = clip(memory, s);
+            List<SongMatch> want = memoryRec.recognizeMatches(clip, 3, 1);
+            List<SongMatch> got = segmentedRec.recognizeMatches(clip, 3, 1);
+            expect(!got.isEmpty() && got.get(0).getSongName().equals("song" + s), "clip of song" + s
+                    + " recognized as " + got + " in the segmented database");
+            expect(got.size() == want.size() && got.get(0).getMatchCount() == want.get(0).getMatchCount(),
+                    "clip of song" + s + " scored differently in the segmented database");
+        }
+        deleteAll(directory);
+    }
+
+    /**
+     * A gated fingerprint, with dropped slices at the start, in a long gap in the middle and at the end, must be read back
+     * with the same name, settings, hashes and coarse hashes.
+     */
+    private static void fingerprintFileRoundTrip() throws Exception {
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        db.setFrameGate(new FrameGate(-60, 0.45));
+        int rate = db.getAnalysisRate();
+        float[] song = SyntheticAudio.song(35, 30, rate);
+        Arrays.fill(song, 0, 2 * rate, 0);
+        Arrays.fill(song, 10 * rate, 25 * rate, 0); // About 160 dropped slices, a gap needing a two byte varint.
+        Arrays.fill(song, 29 * rate, song.length, 0);
+        Fingerprint fingerprint = db.fingerprint(song);
+        int dropped = 0;
+        for (long hash : fingerprint.getHashes()) {
+            if (hash == FingerprintFile.NO_HASH) {
+                dropped++;
+            }
+        }
+        expect(dropped > 150 && dropped < fingerprint.length(), dropped + " of " + fingerprint.length()
+                + " slices dropped, the check needs both kinds");
+
+        File file = File.createTempFile("selfcheck", "." + FingerprintFile.EXTENSION);
+        String name = "Mot\u00f6rhead - Ace of Spades (live) \u266b.mp3";
+        new FingerprintFile(name, db.getFingerprintSettings(), fingerprint).write(file);
+        FingerprintFile read = FingerprintFile.read(file);
+        expect(read.getSongName().equals(name), "name read back as " + read.getSongName());
+        expect(read.getSettings().equals(db.getFingerprintSettings()), "settings read back as " + read.getSettings());
+        expect(FingerprintFile.readSettings(file).equals(db.getFingerprintSettings()), "readSettings disagrees with read");
+        expect(Arrays.equals(read.getFingerprint().getHashes(), fingerprint.getHashes()), "hashes changed");
+        expect(Arrays.equals(read.getFingerprint().getCoarseHashes(), fingerprint.getCoarseHashes()), "coarse hashes changed");
+        file.delete();
+    }
+
+    /**
+     * Files cut short, files that are not fingerprints and version 1 files, which lack the settings, must be refused with
+     * an IOException rather than read as a wrong fingerprint.
+     */
+    private static void fingerprintFileRejectsBadFiles() throws Exception {
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        File file = File.createTempFile("selfcheck", "." + FingerprintFile.EXTENSION);
+        new FingerprintFile("song", db.getFingerprintSettings(),
+                db.fingerprint(SyntheticAudio.song(36, 10, db.getAnalysisRate()))).write(file);
+        byte[] whole = Files.readAllBytes(file.toPath());
+
+        Files.write(file.toPath(), Arrays.copyOf(whole, whole.length - 5));
+        expectUnreadable(file, "a truncated file");
+        byte[] wrongMagic = whole.clone();
+        wrongMagic[0] = 'X';
+        Files.write(file.toPath(), wrongMagic);
+        expectUnreadable(file, "a file with the wrong magic number");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x41465031); // "AFP1"
+            out.writeInt(1);
+            out.writeInt(db.getAnalysisRate());
+            out.writeUTF("old song");
+            out.writeInt(0);
+            out.writeInt(0);
+        }
+        expectUnreadable(file, "a version 1 file");
+        file.delete();
+    }
+
+    private static void expectUnreadable(File file, String what) {
+        try {
+            FingerprintFile.read(file);
+            throw new AssertionError(what + " was read");
+        } catch (IOException expected) {
+            // Refused, as it should be.
+        }
+    }
+
+    /**
+     * A directory of fingerprint files made with the mixed hasher must not be imported into a database using the decimal
+     * hasher or a frame gate: the import must throw before adding a single song.
+     */
+    private static void importRejectsOtherSettings() throws Exception {
+        SongDatabase source = new SongDatabase();
+        source.setFingerprinter(new SongFingerprint(source));
+        File directory = Files.createTempDirectory("selfcheck").toFile();
+        for (int s = 0; s < 3; s++) {
+            new FingerprintFile("song" + s, source.getFingerprintSettings(),
+                    source.fingerprint(SyntheticAudio.song(s, 10, source.getAnalysisRate())))
+                    .write(new File(directory, "song" + s + "." + FingerprintFile.EXTENSION));
+        }
+        SongDatabase decimal = new SongDatabase();
+        decimal.setFingerprinter(new SongFingerprint(decimal, new DecimalHasher()));
+        SongDatabase gated = new SongDatabase();
+        gated.setFingerprinter(new SongFingerprint(gated));
+        gated.setFrameGate(new FrameGate(-60, 0.45));
+        for (SongDatabase db : new SongDatabase[]{decimal, gated}) {
+            try {
+                db.importFingerprints(directory);
+                throw new AssertionError("imported files made with " + source.getFingerprintSettings() + " into "
+                        + db.getFingerprintSettings());
+            } catch (IllegalArgumentException expected) {
+                expect(db.getSongCount() == 0, db.getSongCount() + " songs added by a refused import");
+            }
+        }
+        SongDatabase same = new SongDatabase();
+        same.setFingerprinter(new SongFingerprint(same));
+        expect(same.importFingerprints(directory) == 3, "files made with the same settings not imported");
+        deleteAll(directory);
+    }
+
+    /**
+     * Songs at a_b/c.wav and a/b_c.wav were once exported to the same file. They must get a file each, whether exported
+     * at once or split over three shards, and import as two songs.
+     */
+    private static void exportKeepsPathsApart() throws Exception {
+        File songs = catalog(2);
+        for (String path : new String[]{"a_b/c.wav", "a/b_c.wav"}) {
+            File file = new File(songs, path);
+            expect(file.getParentFile().mkdirs(), "unable to create " + file.getParentFile());
+            Files.move(new File(songs, path.startsWith("a_b") ? "song0.wav" : "song1.wav").toPath(), file.toPath());
+        }
+        File whole = Files.createTempDirectory("selfcheck").toFile();
+        FingerprintExporter.main(new String[]{songs.getPath(), whole.getPath(), "2"});
+        File sharded = Files.createTempDirectory("selfcheck").toFile();
+        for (int shard = 0; shard < 3; shard++) {
+            FingerprintExporter.main(new String[]{songs.getPath(), sharded.getPath(), "2", shard + "/3"});
+        }
+        for (File out : new File[]{whole, sharded}) {
+            List<File> files = new CatalogScanner(Collections.singleton(FingerprintFile.EXTENSION), false, 1).list(out);
+            expect(files.size() == 2, files.size() + " fingerprint files exported instead of 2: " + files);
+            SongDatabase db = new SongDatabase();
+            db.setFingerprinter(new SongFingerprint(db));
+            expect(db.importFingerprints(out) == 2, "exported files did not import as two songs");
+            deleteAll(out);
+        }
+        deleteAll(songs);
+    }
+
+    /**
+     * Builds a catalog of four unrelated songs and three copies: two of song 0 with 7 and 19 slices of other music in
+     * front, the second also cut short, and one of song 1 with 11 slices in front. The detector must return exactly the
+     * clusters {0, 4, 5} and {1, 6}, each song's shift being its lead-in subtracted from the canonical song's. After
+     * merging, no posting may name a copy, lists must stay sorted, and a clip of a copy must be found in the canonical
+     * song at the canonical song's offset.
+     */
+    private static void duplicatesHaveKnownShifts() {
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        int rate = db.getAnalysisRate();
+        int chunk = db.getChunkSize();
+        float[][] originals = new float[4][];
+        for (int s = 0; s < originals.length; s++) {
+            originals[s] = SyntheticAudio.song(380 + s, 20, rate);
+            db.addSong("song" + s, db.fingerprint(originals[s]));
+        }
+        int[] copyOf = {0, 0, 1};
+        int[] leadIn = {7, 19, 11}; // Slices of other music in front of each copy.
+        int[] lead = new int[7]; // Lead-in of every song id.
+        for (int c = 0; c < copyOf.length; c++) {
+            float[] original = originals[copyOf[c]];
+            int length = c == 1 ? original.length - 3 * rate : original.length;
+            float[] copy = new float[leadIn[c] * chunk + length];
+            System.arraycopy(SyntheticAudio.song(390 + c, 5, rate), 0, copy, 0, leadIn[c] * chunk);
+            System.arraycopy(original, 0, copy, leadIn[c] * chunk, length);
+            int songId = db.addSong("copy" + c, db.fingerprint(copy));
+            lead[songId] = leadIn[c];
+        }
+
+        DuplicateDetector detector = new DuplicateDetector(db);
+        List<DuplicateDetector.Cluster> clusters = detector.findClusters();
+        Map<Set<Integer>, DuplicateDetector.Cluster> bySongs = new HashMap<>();
+        for (DuplicateDetector.Cluster cluster : clusters) {
+            Set<Integer> songs = new TreeSet<>();
+            for (int songId : cluster.getSongIds()) {
+                songs.add(songId);
+            }
+            bySongs.put(songs, cluster);
+        }
+        Set<Integer> first = new TreeSet<>(Arrays.asList(0, 4, 5));
+        Set<Integer> second = new TreeSet<>(Arrays.asList(1, 6));
+        expect(clusters.size() == 2 && bySongs.containsKey(first) && bySongs.containsKey(second),
+                "clusters " + bySongs.keySet() + " instead of " + first + " and " + second);
+        for (DuplicateDetector.Cluster cluster : clusters) {
+            int canonical = cluster.getCanonical();
+            for (int i = 0; i < cluster.getSongIds().length; i++) {
+                int songId = cluster.getSongIds()[i];
+                int want = lead[canonical] - lead[songId];
+                expect(cluster.getTimeShifts()[i] == want, "song " + songId + " shifted by "
+                        + cluster.getTimeShifts()[i] + " slices onto song " + canonical + " instead of " + want);
+            }
+        }
+
+        expect(detector.merge(clusters) > 0, "merging removed no postings");
+        long[] bad = new long[2]; // Postings of merged copies, unsorted lists.
+        db.forEachPostingList((hash, points) -> {
+            for (int p = 0; p < points.size(); p++) {
+                if (db.getCanonicalSongId(points.get(p).getSongId()) != points.get(p).getSongId()) {
+                    bad[0]++;
+                }
+                if (p > 0 && points.get(p - 1).getSongId() > points.get(p).getSongId()) {
+                    bad[1]++;
+                }
+            }
+        });
+        expect(bad[0] == 0 && bad[1] == 0, bad[0] + " postings still name merged songs, " + bad[1] + " out of order");
+        int canonical = bySongs.get(first).getCanonical();
+        float[] clip = SyntheticAudio.clip(originals[0], 50.0 * chunk / rate, 6, rate); // Starts on a slice boundary.
+        List<SongMatch> matches = new SongFingerprint(db).recognizeMatches(clip, 1, 1);
+        double wantSeconds = (50.0 + lead[canonical]) * chunk / rate;
+        expect(!matches.isEmpty() && matches.get(0).getSongId() == canonical
+                        && Math.abs(matches.get(0).getOffsetSeconds() - wantSeconds) <= (double) chunk / rate,
+                "clip of song 0 at " + wantSeconds + "s in song " + canonical + " matched " + matches);
+    }
+
+    /**
+     * Without the fingerprint.gate property a new database must hash every slice, and "on" must turn the gate on.
+     */
+    private static void frameGateOffByDefault() {
+        String property = System.getProperty("fingerprint.gate");
+        try {
+            System.clearProperty("fingerprint.gate");
+            expect(new SongDatabase().getFrameGate() == null, "a new database gates slices without being asked to");
+            System.setProperty("fingerprint.gate", "on");
+            expect(new SongDatabase().getFrameGate() != null, "fingerprint.gate=on does not turn the gate on");
+        } finally {
+            if (property == null) {
+                System.clearProperty("fingerprint.gate");
+            } else {
+                System.setProperty("fingerprint.gate", property);
+            }
+        }
+    }
+
+    /**
+     * A song with a passage 50 dB quieter than the rest and a stretch of silence. Clips of the quiet passage, of the
+     * silence and of the loud part, starting on slice boundaries, must drop exactly the slices the song dropped and get
+     * the same hashes for the rest.
+     */
+    private static void frameGateJudgesClipLikeSong() {
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        db.setFrameGate(new FrameGate(-60, 0.45));
+        int rate = db.getAnalysisRate();
+        int chunk = db.getChunkSize();
+        float[] song = SyntheticAudio.song(39, 40, rate);
+        SyntheticAudio.ramp(song, 10 * rate, 20 * rate, 0.003, 0.003);
+        Arrays.fill(song, 25 * rate, 28 * rate, 0);
+        long[] songHashes = db.fingerprint(song).getHashes();
+        int[] dropped = new int[2]; // In the song, in all clips.
+        for (long hash : songHashes) {
+            if (hash == FingerprintFile.NO_HASH) {
+                dropped[0]++;
+            }
+        }
+        expect(dropped[0] > 0 && dropped[0] < songHashes.length, dropped[0] + " of " + songHashes.length
+                + " slices of the song dropped, the check needs both kinds");
+        for (int fromSlice : new int[]{100, 130, 220, 300}) {
+            float[] clip = Arrays.copyOfRange(song, fromSlice * chunk, fromSlice * chunk + 8 * rate);
+            long[] clipHashes = db.fingerprint(clip).getHashes();
+            for (int t = 0; t < clipHashes.length; t++) {
+                expect(clipHashes[t] == songHashes[fromSlice + t], "slice " + (fromSlice + t) + " hashed "
+                        + clipHashes[t] + " in a clip but " + songHashes[fromSlice + t] + " in the song");
+                if (clipHashes[t] == FingerprintFile.NO_HASH) {
+                    dropped[1]++;
+                }
+            }
+        }
+        expect(dropped[1] > 0, "no clip contained a dropped slice");
+    }
+
+    /**
+     * MixedHasher packs each quantized key point into its own 12 bit field, so two slices get the same hash exactly when
+     * their quantized key points are equal, including the fifth band DecimalHasher ignores. The mixer is a bijection, so
+     * exactly one packed value mixes to NO_HASH; undoing the mixer shows that value needs a key point beyond the last fft
+     * bin, so no real slice can be mistaken for a gated one.
+     */
+    private static void mixedHashesKeepFieldsApart() {
+        SongDatabase db = new SongDatabase();
+        KeyPointHasher hasher = new MixedHasher();
+        int bins = db.getChunkSize() / 2; // Key points are bins of a real fft of one chunk.
+        Random random = new Random(33);
+        for (long quantization : new long[]{1, 2, 8}) {
+            // Every value of every band on its own, which any overlap or truncation of the fields makes collide, then
+            // random slices.
+            List<long[]> slices = new ArrayList<>();
+            for (int band = 0; band < 5; band++) {
+                for (int bin = 0; bin < bins; bin++) {
+                    long[] points = new long[5];
+                    points[band] = bin;
+                    slices.add(points);
+                }
+            }
+            for (int i = 0; i < 20000; i++) {
+                long[] points = new long[5];
+                for (int band = 0; band < points.length; band++) {
+                    points[band] = random.nextInt(bins);
+                }
+                slices.add(points);
+            }
+            Map<Long, List<Long>> quantizedOf = new HashMap<>();
+            for (long[] points : slices) {
+                List<Long> quantized = new ArrayList<>();
+                for (long point : points) {
+                    quantized.add(point / quantization);
+                }
+                long hash = hasher.hash(points, quantization);
+                expect(hash != FingerprintFile.NO_HASH, "key points " + Arrays.toString(points) + " hash to NO_HASH");
+                List<Long> earlier = quantizedOf.putIfAbsent(hash, quantized);
+                expect(earlier == null || earlier.equals(quantized), "key points " + earlier + " and " + quantized
+                        + " share a hash at quantization " + quantization);
+            }
+        }
+        long packed = unmix(FingerprintFile.NO_HASH);
+        expect(MixedHasher.mix(packed) == FingerprintFile.NO_HASH, "unmix is not the inverse of mix");
+        boolean reachable = packed >>> 60 == 0;
+        for (int field = 0; field < 5; field++) {
+            reachable &= ((packed >>> (field * 12)) & 0xFFF) < bins;
+        }
+        expect(!reachable, "key points within the fft bins can hash to NO_HASH: packed " + Long.toHexString(packed));
+    }
+
+    /**
+     * Clips played up to 3% fast or slow are recognized once by the fused search over speed factors from 0.96 to 1.04,
+     * and once by an independent query per factor with the clip resampled back, the way SpeedToleranceBenchmark compares
+     * them. Both must pick the clip's song, and the fused search must report the speed factor nearest the clip's speed.
+     */
+    private static void fusedSpeedSearchMatchesIndependent() throws Exception {
+        SongDatabase db = syntheticDatabase(20, 4);
+        SongFingerprint rec = new SongFingerprint(db);
+        rec.setEarlyExit(false);
+        int rate = db.getAnalysisRate();
+        double[] factors = {0.96, 0.97, 0.98, 0.99, 1.0, 1.01, 1.02, 1.03, 1.04};
+        double[] speeds = {1.03, 0.97, 1.0, 1.02, 0.99};
+        for (int s = 0; s < 20; s += 2) {
+            double speed = speeds[(s / 2) % speeds.length];
+            float[] clip = SyntheticAudio.changeSpeed(SyntheticAudio.clip(SyntheticAudio.song(s, 20, rate), 5, 8, rate), speed);
+            List<SongMatch> fused = rec.recognizeMatches(clip, 1, 1, factors);
+            SongMatch independent = null;
+            for (double f : factors) {
+                List<SongMatch> matches = rec.recognizeMatches(SyntheticAudio.changeSpeed(clip, 1 / f), 1, 1);
+                if (!matches.isEmpty() && (independent == null || matches.get(0).getMatchCount() > independent.getMatchCount())) {
+                    independent = matches.get(0);
+                }
+            }
+            expect(independent != null && independent.getSongName().equals("song" + s), "independent queries of song" + s + " at speed "
+                    + speed + " found " + independent);
+            expect(!fused.isEmpty() && fused.get(0).getSongId() == independent.getSongId(), "fused search of song" + s
+                    + " at speed " + speed + " found " + fused + ", independent queries " + independent);
+            expect(Math.abs(fused.get(0).getSpeedFactor() - speed) < 0.005, "song" + s + " at speed " + speed
+                    + " matched at speed factor " + fused.get(0).getSpeedFactor());
+        }
+    }
+
+    /**
+     * Warms up a recognizer with a gate, a shortlist, several speed factors and its own hasher. The warmup must query
+     * through that hasher at both quantizations, which shows it configured its scratch database like the live one, while
+     * the live songs, the live gate's counters, the live query stats and every setting stay as they were.
+     */
+    private static void warmupLeavesLiveAlone() throws Exception {
+        AtomicLong hashed = new AtomicLong();
+        Set<Long> quantizations = ConcurrentHashMap.newKeySet();
+        KeyPointHasher mixed = new MixedHasher();
+        KeyPointHasher counting = (points, quantization) -> {
+            hashed.incrementAndGet();
+            quantizations.add(quantization);
+            return mixed.hash(points, quantization);
+        };
+        SongDatabase live = new SongDatabase();
+        live.setFrameGate(new FrameGate(-50, 0.5));
+        SongFingerprint rec = new SongFingerprint(live, counting);
+        live.setFingerprinter(rec);
+        for (int s = 0; s < 2; s++) {
+            live.addSong("song" + s, live.fingerprint(SyntheticAudio.song(s, 20, live.getAnalysisRate())));
+        }
+        rec.setShortlistSize(3);
+        rec.setSpeedFactors(0.99, 1.0, 1.01);
+        rec.setEarlyExit(false);
+        rec.recognizeMatches(clip(live, 1), 1, 1);
+        long frames = live.getFrameGate().getFrames();
+        long scanned = rec.getPostingsScanned();
+        long hashedBefore = hashed.get();
+        quantizations.clear();
+
+        Warmup warmup = new Warmup(rec, TIMEOUT_MILLIS).run();
+        expect(warmup.getQueries() > 0, "the warmup ran no queries: " + warmup.getReport());
+        expect(hashed.get() > hashedBefore, "the warmup did not use the recognizer's hasher");
+        expect(quantizations.equals(new HashSet<>(Arrays.asList(rec.getQuantization(), rec.getCoarseQuantization()))),
+                "the warmup hashed at quantizations " + quantizations);
+        expect(live.getSongCount() == 2, "the warmup added songs to the live database: " + live.getSongCount());
+        expect(live.getFrameGate().getFrames() == frames, "the warmup counted frames on the live gate");
+        expect(rec.getPostingsScanned() == scanned, "the warmup queries counted in the live query stats");
+        expect(rec.getShortlistSize() == 3 && !rec.isEarlyExit()
+                        && Arrays.equals(rec.getSpeedFactors(), new double[]{0.99, 1.0, 1.01}),
+                "the warmup changed the live settings");
+    }
+
+    /**
+     * A 1 kHz tone encoded as 16 bit stereo, 16 bit big endian mono, 8 bit mono and 16 bit mono at 22.05 kHz must decode
+     * to the same mono samples at the analysis rate: two seconds long, at the tone's level, and with the fft peak in the
+     * tone's bin, so samples are decoded as samples rather than bytes. A wav file of the stereo tone must decode like
+     * its raw pcm.
+     */
+    private static void pcmFormatsDecodeAlike() throws Exception {
+        SongDatabase db = new SongDatabase();
+        int rate = db.getAnalysisRate();
+        AudioFormat stereo = new AudioFormat(FILE_RATE, 16, 2, true, false);
+        AudioFormat[] formats = {stereo, new AudioFormat(FILE_RATE, 16, 1, true, true),
+                new AudioFormat(FILE_RATE, 8, 1, true, true), new AudioFormat(FILE_RATE / 2, 16, 1, true, false)};
+        float[] reference = null;
+        for (AudioFormat format : formats) {
+            float[] tone = tone(1000, 0.5, 2, (int) format.getSampleRate());
+            float[] samples = db.convertToSamples(SyntheticAudio.encode(tone, format), format);
+            expect(Math.abs(samples.length - 2 * rate) <= 1, format + " decoded to " + samples.length + " samples");
+            double power = 0;
+            for (float sample : samples) {
+                power += sample * sample;
+            }
+            double rms = Math.sqrt(power / samples.length);
+            expect(Math.abs(rms - 0.5 / Math.sqrt(2)) < 0.02, format + " decoded at rms " + rms);
+            double[] slice = db.convertToFrequencyDomain(samples)[1];
+            int peak = 0;
+            for (int bin = 1; bin <= db.getChunkSize() / 2; bin++) {
+                if (Math.hypot(slice[2 * bin], slice[2 * bin + 1]) > Math.hypot(slice[2 * peak], slice[2 * peak + 1])) {
+                    peak = bin;
+                }
+            }
+            long expected = Math.round(1000.0 * db.getChunkSize() / rate);
+            expect(peak == expected, format + " put the 1 kHz tone in bin " + peak + " instead of " + expected);
+            if (reference == null) {
+                reference = samples;
+            } else if (format.getSampleSizeInBits() == 16 && format.getSampleRate() == FILE_RATE) {
+                expectSameSamples(reference, samples, 1e-4, format.toString());
+            }
+        }
+        byte[] pcm = SyntheticAudio.encode(tone(1000, 0.5, 2, FILE_RATE), stereo);
+        ByteArrayOutputStream wav = new ByteArrayOutputStream();
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), stereo, pcm.length / stereo.getFrameSize()),
+                AudioFileFormat.Type.WAVE, wav);
+        float[] decoded = db.getSamples(new ByteArrayInputStream(wav.toByteArray()), "tone.wav");
+        expect(decoded != null, "the wav file was not decoded");
+        expectSameSamples(reference, decoded, 1e-4, "the wav file");
+    }
+
+    private static float[] tone(double hz, double amplitude, double seconds, int sampleRate) {
+        float[] samples = new float[(int) (seconds * sampleRate)];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) (amplitude * Math.sin(2 * Math.PI * hz * i / sampleRate));
+        }
+        return samples;
+    }
+
+    private static void expectSameSamples(float[] expected, float[] got, double tolerance, String what) {
+        expect(got.length == expected.length, what + " decoded to " + got.length + " samples instead of " + expected.length);
+        for (int i = 0; i < got.length; i++) {
+            expect(Math.abs(got[i] - expected[i]) <= tolerance, what + " differs at sample " + i + ": " + got[i]
+                    + " instead of " + expected[i]);
+        }
+    }
+
+    /**
+     * With every song scored and nothing pruned, recognizeMatches must return the clip's song first at the clip's offset,
+     * with names matching the ids, counts in descending order, and confidence equal to the match count over the hashed
+     * slices. A maxResults cutoff must return the head of the unlimited list, and a minScore cutoff exactly the songs of
+     * that list that reach it.
+     */
+    private static void matchesFollowCutoffs() {
+        SongDatabase db = new SongDatabase();
+        SongFingerprint rec = new SongFingerprint(db, new DecimalHasher()); // Its clustered keys give a long tail of songs.
+        db.setFingerprinter(rec);
+        for (int s = 0; s < 20; s++) {
+            db.addSong("song" + s, db.fingerprint(SyntheticAudio.song(s, 20, db.getAnalysisRate())));
+        }
+        rec.setEarlyExit(false);
+        rec.setShortlistSize(0);
+        for (int s = 0; s < 20; s += 4) {
+            float[] clip = clip(db, s);
+            int hashed = 0;
+            for (long hash : rec.queryFingerprint(clip).getHashes()) {
+                if (hash != FingerprintFile.NO_HASH) {
+                    hashed++;
+                }
+            }
+            List<SongMatch> all = rec.recognizeMatches(clip, 0, 1);
+            expect(all.size() > 3, "only " + all.size() + " songs share a hash with a clip of song" + s);
+            SongMatch top = all.get(0);
+            expect(top.getSongName().equals("song" + s), "clip of song" + s + " recognized as " + top);
+            expect(Math.abs(top.getOffsetSeconds() - 5) <= db.getSecondsPerChunk(), "clip from 5s of song" + s
+                    + " placed at " + top.getOffsetSeconds() + "s");
+            for (int i = 0; i < all.size(); i++) {
+                SongMatch match = all.get(i);
+                expect(match.getSongName().equals(db.getSongName(match.getSongId())), match + " has another song's id");
+                expect(match.getMatchCount() >= 1 && (i == 0 || all.get(i - 1).getMatchCount() >= match.getMatchCount()),
+                        "matches of song" + s + " not in descending order: " + all);
+                expect(Math.abs(match.getConfidence() - (double) match.getMatchCount() / hashed) < 1e-9,
+                        match + " has confidence other than its count over " + hashed + " hashed slices");
+            }
+            int maxResults = all.size() - 1;
+            List<SongMatch> head = rec.recognizeMatches(clip, maxResults, 1);
+            expect(head.size() == maxResults, head.size() + " matches returned for maxResults " + maxResults);
+            for (int i = 0; i < head.size(); i++) {
+                expect(head.get(i).getSongId() == all.get(i).getSongId()
+                        && head.get(i).getMatchCount() == all.get(i).getMatchCount(),
+                        "maxResults " + maxResults + " returned " + head + " instead of the head of " + all);
+            }
+            int minScore = all.get(1).getMatchCount() + 1;
+            List<SongMatch> strong = rec.recognizeMatches(clip, 0, minScore);
+            int reaching = 0;
+            for (SongMatch match : all) {
+                if (match.getMatchCount() >= minScore) {
+                    reaching++;
+                }
+            }
+            expect(strong.size() == reaching && strong.get(0).getSongId() == top.getSongId(), "minScore " + minScore
+                    + " returned " + strong + " instead of " + reaching + " matches");
+        }
+    }
+
+    /**
+     * A small RegressionHarness run must recognize every clean clip, at the right offset to within one slice, as it did
+     * when the harness was added. Latency is left to the harness itself, since it depends on the machine.
+     */
+    private static void harnessKeepsCleanAccuracy() throws Exception {
+        String report = new RegressionHarness(1, 40, 20, 40, 4, false).run();
+        Matcher clean = Pattern.compile("\"clean\": \\{[^}]*\"top1Accuracy\": ([0-9.]+), \"meanRank\": ([0-9.]+), "
+                + "\"meanOffsetErrorSeconds\": ([0-9.]+)").matcher(report);
+        expect(clean.find(), "no clean scenario in the report: " + report);
+        expect(Double.parseDouble(clean.group(1)) == 1.0 && Double.parseDouble(clean.group(2)) == 1.0,
+                "clean top 1 accuracy " + clean.group(1) + " and mean rank " + clean.group(2) + " instead of 1");
+        double slice = new SongDatabase().getSecondsPerChunk();
+        expect(Double.parseDouble(clean.group(3)) < slice, "clean clips were off by " + clean.group(3) + "s on average");
+    }
+
+    /**
+     * The inverse of MixedHasher.mix: each xor shift by 33 undoes itself, and each odd multiplier has a modular inverse.
+     */
+    private static long unmix(long k) {
+        k ^= k >>> 33;
+        k *= inverse(0xc4ceb3f91a85ec53L);
+        k ^= k >>> 33;
+        k *= inverse(0xff51afd7ed558ccdL);
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Returns the inverse of an odd number modulo 2^64 by Newton's iteration, each step doubling the correct low bits.
+     */
+    private static long inverse(long odd) {
+        long x = odd; // Correct to 3 bits, since odd * odd = 1 mod 8.
+        for (int i = 0; i < 5; i++) {
+            x *= 2 - odd * x;
+        }
+        return x;
+    }
+
+    /**
+     * Returns a 6 second clip of synthetic song s from 5 seconds in, at the database's analysis rate, with light noise.
+     */
+    private static float[] clip(SongDatabase db, int s) {
+        int rate = db.getAnalysisRate();
+        return SyntheticAudio.addNoise(SyntheticAudio.clip(SyntheticAudio.song(s, 20, rate), 5, 6, rate), 0.01, s);
+    }
+
+    /**
+     * Builds an in-memory database of 20 second synthetic songs named song0, song1, ..., added from several threads.
+     */
+    private static SongDatabase syntheticDatabase(int songs, int threads) throws Exception {
+        SongDatabase db = new SongDatabase();
+        db.setFingerprinter(new SongFingerprint(db));
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> added = new ArrayList<>();
+        for (int s = 0; s < songs; s++) {
+            int song = s;
+            added.add(workers.submit(() -> db.addSong("song" + song,
+                    db.fingerprint(SyntheticAudio.song(song, 20, db.getAnalysisRate())))));
+        }
+        for (Future<Integer> f : added) {
+            f.get();
+        }
+        workers.shutdown();
+        return db;
+    }
+
+    /**
+     * Writes synthetic songs as 16 bit stereo wav files to a new temporary directory.
+     */
+    private static File catalog(int songs) throws IOException {
+        File directory = Files.createTempDirectory("selfcheck").toFile();
+        AudioFormat format = new AudioFormat(FILE_RATE, 16, 2, true, false);
+        for (int s = 0; s < songs; s++) {
+            byte[] pcm = SyntheticAudio.encode(SyntheticAudio.song(s, 10, FILE_RATE), format);
+            AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), format, pcm.length / format.getFrameSize()),
+                    AudioFileFormat.Type.WAVE, new File(directory, "song" + s + ".wav"));
+        }
+        return directory;
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -17,9 +17,10 @@ public class SimpleFingerprinter {
 
         SongDatabase db = new SongDatabase();
         //TODO: initialize the AudioFingerPrinter with your implementing class and pass it the song database.
-        AudioFingerprinter rec = new SongFingerprint(db);
+        SongFingerprint rec = new SongFingerprint(db);
         db.setFingerprinter(rec);
         db.loadDatabase(path);
+        System.out.println(new Warmup(rec, 5000).run().getReport());
         //TODO: Change song to a song on your harddrive.
         String song = "/IntelliJ/124-hw7/music/12 Jealous.mp3";
         System.out.println("Recognizing...");
@@ -8,17 +8,26 @@ import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
 import javafx.scene.control.ProgressBar;
 import org.jtransforms.fft.DoubleFFT_1D;
-import org.tritonus.sampled.convert.PCM2PCMConversionProvider;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  * Holds a database of songs and their associated fingerprints through time. This is used to find matches for new songs to identify them.
@@ -27,9 +36,24 @@ import java.util.concurrent.ConcurrentHashMap;
 public class SongDatabase {
 
     private ConcurrentHashMap<Integer, String> songNames; // Maps songId to the name.
-    private ConcurrentHashMap<Long, List<DataPoint>> matcherDB; // Maps a fingerprint hash to a list of datapoints (song/time offsets) where the hash was calculated.
-    private int nextSongId; // Used to assign ids to songs as they are added to the database. Starts at zero and increments by one for each song.
+    private ConcurrentHashMap<Long, List<DataPoint>> matcherDB; // Maps a fingerprint hash to a list of datapoints (song/time offsets) where the hash was calculated, sorted by song id.
+    private ConcurrentHashMap<Long, SongSet> coarseDB; // Maps a coarse hash to the songs it occurs in, without times. Used to shortlist candidates.
+    private SegmentedIndex segmentedIndex; // Replaces matcherDB when the database is built with a memory budget.
+    private File segmentDirectory;
+    private long memoryBudgetBytes;
+    private ConcurrentHashMap<Integer, Integer> canonicalIds; // Maps a song merged away as a duplicate to the song now holding its postings.
+    private AtomicInteger nextSongId; // Used to assign ids to songs as they are added to the database. Starts at zero and increments by one for each song.
     private AudioFingerprinter fingerprinter;
+    private volatile FrameGate frameGate; // Drops silent and noise-like slices before hashing, or null to hash every slice.
+
+    private int analysisRate; // Sample rate in Hz that all audio is resampled to before the fft.
+    // Fft plans by chunk size, built once instead of per song. Each call borrows a plan of its own, so concurrent callers
+    // never share one, and returns it when done.
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<DoubleFFT_1D>> fftPlans = new ConcurrentHashMap<>();
+
+    private static final int DEFAULT_ANALYSIS_RATE = 11025;
+    private static final Comparator<DataPoint> BY_SONG = Comparator.comparingInt(DataPoint::getSongId);
+    private static final double BIN_WIDTH = 44100.0 / 4096; // Width in Hz of one fft bin, kept the same at every analysis rate.
 
     /**
      * Constructor to initialize instance variables.
@@ -37,8 +61,12 @@ public class SongDatabase {
     public SongDatabase(){
         songNames = new ConcurrentHashMap<>();
         matcherDB = new ConcurrentHashMap<>();
-        nextSongId = 0;
+        coarseDB = new ConcurrentHashMap<>();
+        canonicalIds = new ConcurrentHashMap<>();
+        nextSongId = new AtomicInteger();
         fingerprinter = null;
+        analysisRate = DEFAULT_ANALYSIS_RATE;
+        frameGate = FrameGate.fromSystemProperties(); // Null unless turned on, see FrameGate.
     }
 
     /**
@@ -58,21 +86,124 @@ public class SongDatabase {
         this.fingerprinter = fingerprinter;
     }
 
+    /**
+     * Sets the sample rate that audio is resampled to before fingerprinting. Lower rates mean less fft work per second
+     * of audio. The fft size follows the rate so each frequency bin keeps the same width. Songs and queries must be
+     * analyzed at the same rate, so this should be set before loading the database.
+     * @param analysisRate sample rate in Hz, at least 8000
+     */
+    public void setAnalysisRate(int analysisRate) {
+        if (analysisRate < 8000) {
+            throw new IllegalArgumentException("Analysis rate must be at least 8000 Hz: " + analysisRate);
+        }
+        this.analysisRate = analysisRate;
+    }
+
+    /**
+     * Getter for the analysis sample rate.
+     * @return sample rate in Hz
+     */
+    public int getAnalysisRate() {
+        return analysisRate;
+    }
+
+    /**
+     * Returns the settings songs are fingerprinted with: the analysis rate, the frame gate and the fingerprinter's
+     * hashing scheme. A fingerprinter other than SongFingerprint is recorded by its class name.
+     * @return the current settings
+     */
+    public FingerprintSettings getFingerprintSettings() {
+        if (fingerprinter instanceof SongFingerprint) {
+            SongFingerprint songFingerprint = (SongFingerprint) fingerprinter;
+            return new FingerprintSettings(analysisRate, songFingerprint.getHasher().getClass().getName(),
+                    songFingerprint.getQuantization(), songFingerprint.getCoarseQuantization(), frameGate);
+        }
+        return new FingerprintSettings(analysisRate, fingerprinter == null ? "none" : fingerprinter.getClass().getName(),
+                0, 0, frameGate);
+    }
+
+    /**
+     * Switches the database to a memory-budgeted build: postings go to a SegmentedIndex that spills sorted segments to
+     * disk when its buffer is full, instead of to the matcherDB map. This lets catalogs whose postings are larger than the
+     * heap be loaded. The heap used still grows with the catalog, only much more slowly: the coarse shortlist index and
+     * the song names stay in memory, and so does a sparse index of every segment.
+     * Songs can be added before and after finishBuild. Duplicate detection and merging need the in-memory index and
+     * refuse a segmented one, see isSegmented.
+     * @param segmentDirectory where segment files are written
+     * @param memoryBudgetBytes heap to use for buffered postings
+     */
+    public void enableSegmentedBuild(File segmentDirectory, long memoryBudgetBytes){
+        if (segmentedIndex != null) {
+            segmentedIndex.close();
+        }
+        this.segmentDirectory = segmentDirectory;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        segmentedIndex = new SegmentedIndex(segmentDirectory, memoryBudgetBytes);
+    }
+
+    /**
+     * Removes every song from the database.
+     */
+    public void clear(){
+        songNames.clear();
+        matcherDB.clear();
+        coarseDB.clear();
+        canonicalIds.clear();
+        if (segmentedIndex != null) {
+            segmentedIndex.close();
+            segmentedIndex = new SegmentedIndex(segmentDirectory, memoryBudgetBytes);
+        }
+    }
+
+    /**
+     * Returns whether postings go to a SegmentedIndex on disk rather than to the in-memory matcherDB.
+     * @return true after enableSegmentedBuild
+     */
+    public boolean isSegmented(){
+        return segmentedIndex != null;
+    }
+
+    /**
+     * Called once all songs have been added. In a segmented build this flushes the remaining postings and merges the
+     * segments into one; songs added later start new segments until the next call. The coarse index is trimmed to its
+     * current size either way.
+     */
+    public void finishBuild(){
+        if (segmentedIndex != null) {
+            segmentedIndex.finish();
+        }
+        coarseDB.forEachValue(1, SongSet::trim);
+    }
+
     /**
      * Given a directory, this method will find all the mp3 files inside it and create fingerprints for each one to add to the matcherDB map.
+     * The files are processed by an IngestionPipeline with a default number of workers per stage.
+     * If the calling thread is interrupted, loading stops with the songs added so far, finishBuild is not called and the
+     * interrupt flag stays set.
      * @param directory
      */
     public void loadDatabase(File directory){
-        songNames.clear();
-        matcherDB.clear();
+        clear();
         System.out.println("Looking for files in "+directory.getAbsolutePath());
 
-        // Get an array of mp3 files in the directory.
-        File[] audioFiles = getAudioFilesFromDirectory(directory);
-        System.out.println("Found "+audioFiles.length+" files.");
-        for(int i=0; i < audioFiles.length; i++){
-            processFile(audioFiles[i]);
+        IngestionPipeline pipeline = newPipeline();
+        pipeline.run(directory);
+        if (Thread.currentThread().isInterrupted()) {
+            System.out.println("Loading interrupted, the database is not finished");
+        } else {
+            finishBuild();
         }
+        System.out.println(pipeline.getReport());
+    }
+
+    /**
+     * Creates the pipeline the load methods use: decode, fingerprint and insert the files in separate stages so each
+     * kind of work keeps its own threads busy.
+     * @return a pipeline with a default number of workers per stage
+     */
+    private IngestionPipeline newPipeline(){
+        int cores = Runtime.getRuntime().availableProcessors();
+        return new IngestionPipeline(this, Math.max(1, cores / 2), Math.max(1, cores / 2), 1, 16);
     }
 
     /**
@@ -93,31 +224,29 @@ public class SongDatabase {
      * @param listView UI listview where we want to display the results when finished.
      */
     public void loadDatabaseAsync(File directory, ProgressBar progressBar, Label label, ListView<String> listView){
-        songNames.clear();
-        matcherDB.clear();
+        clear();
         System.out.println("Looking for files in "+directory.getAbsolutePath());
 
         // Create a new task object that will run in a separate thread to process each mp3 file
         // This is defining an anonymous class: https://docs.oracle.com/javase/tutorial/java/javaOO/anonymousclasses.html
         Task<ObservableList<String>> task = new Task<ObservableList<String>>() {
             @Override public ObservableList<String> call() {
-                ObservableList<String> results = FXCollections.observableArrayList();
-                // Get an array of mp3 files in the directory
-                File[] audioFiles = getAudioFilesFromDirectory(directory);
-                System.out.println("Found "+audioFiles.length+" files.");
-                for(int i=0; i < audioFiles.length; i++){
-                    // Check whether the task was canceled and the thread should end.
-                    if (isCancelled()) {
-                        break;
-                    }
-                    // Update the status label in the ui for which song we are processing.
-                    updateMessage("Analyzing "+audioFiles[i].getName());
-                    results.add(audioFiles[i].getName());
-                    processFile(audioFiles[i]);
-                    // Update the ui progress bar with our current progress.
-                    updateProgress(i, audioFiles.length-1);
+                List<String> names = Collections.synchronizedList(new ArrayList<>());
+                // The files go through the same pipeline as loadDatabase. Canceling the task interrupts this thread,
+                // which stops the pipeline.
+                IngestionPipeline pipeline = newPipeline();
+                pipeline.setListener((name, songsAdded, filesFound) -> {
+                    names.add(name);
+                    // Update the status label and progress bar in the ui. The total grows while the scan is running.
+                    updateMessage("Analyzed " + name);
+                    updateProgress(songsAdded, filesFound);
+                });
+                pipeline.run(directory);
+                if (!isCancelled() && !Thread.currentThread().isInterrupted()) {
+                    finishBuild();
                 }
-                return results;
+                System.out.println(pipeline.getReport());
+                return FXCollections.observableArrayList(names);
             }
         };
 
@@ -146,110 +275,307 @@ public class SongDatabase {
      * @param file to process
      */
     public void processFile(File file){
-        byte[] audioRawData = getRawData(file);
-        if (audioRawData != null) {
-            int songId = nextSongId;
-            nextSongId++;
-            songNames.put(songId, file.getName());
-            //TODO: Add the song file to songNames map using the songID as the key. You can get the nume of the file using file.getName().
-
-            //TODO: Create a fingerprint of the file by:
-            double [][] frequency = convertToFrequencyDomain(audioRawData);
-            // 1. converting the raw data to the frequency domain
-            long [][] keyPoints = fingerprinter.determineKeyPoints(frequency);
-            // 2. determining keypoints in the frequency data
-            for(int time = 0; time < keyPoints.length; time++) {// 3. For each chunk of time:
-                long h = fingerprinter.hash(keyPoints[time]);
-                //          4.calculate the hash of the corresponding key points
-                DataPoint dp = new DataPoint(songId, time);
-                //          5. Create a datapoint object representing the time and song.
-                if (matcherDB.containsKey(h)) {
-                    List<DataPoint> matchingP = matcherDB.get(h);
-                    matchingP.add(dp);
-                    matcherDB.put(h, matchingP);
-                } else {
-                    List<DataPoint> matchingP = new ArrayList<>();
-                    matchingP.add(dp);
-                    matcherDB.put(h, matchingP);
-                }
-                //          6. Add the datapoint to list of datapoints that correspond with a specific hash in the matchedDB map (creating the list if it doesn't exist)
-            }
+        float[] samples = getSamples(file);
+        if (samples != null) {
+            addSong(file.getName(), fingerprint(samples));
         }
         System.out.println("Finished analyzing " + file.getName());
     }
 
     /**
-     * Returns an array of bytes holding the raw audio data contained in the mp3 file specified by fileIn
-     * @param fileIn an mp3 file
-     * @return an array of the raw audio data in bytes.
+     * Creates the fingerprint of a song: converts the samples to the frequency domain, determines the keypoints and
+     * hashes them. This only reads the database configuration, so it can run on several threads at once.
+     * Slices the frame gate drops get FingerprintFile.NO_HASH.
+     * @param samples mono samples at the analysis rate
+     * @return fine and coarse hashes, indexed by time
      */
-    public byte[] getRawData(File fileIn){
-        if (!fileIn.isFile()){
-            System.out.println("File does not exist or is a directory: "+fileIn.getName());
-            return null;
+    public Fingerprint fingerprint(float[] samples){
+        // 1. converting the raw data to the frequency domain
+        double [][] frequency = convertToFrequencyDomain(samples);
+        // 2. determining keypoints in the frequency data
+        long [][] keyPoints = fingerprinter.determineKeyPoints(frequency);
+        boolean[] keep = gateFrames(samples, frequency);
+        long[] hashes = new long[keyPoints.length];
+        long[] coarseHashes = new long[keyPoints.length];
+        for(int time = 0; time < keyPoints.length; time++) {// 3. For each chunk of time:
+            if (keep != null && !keep[time]) {
+                hashes[time] = FingerprintFile.NO_HASH;
+                coarseHashes[time] = FingerprintFile.NO_HASH;
+                continue;
+            }
+            //          4.calculate the hash of the corresponding key points
+            hashes[time] = fingerprinter.hash(keyPoints[time]);
+            coarseHashes[time] = fingerprinter.coarseHash(keyPoints[time]);
         }
+        return new Fingerprint(hashes, coarseHashes);
+    }
 
-        int totalFramesRead = 0;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            // First we need to convert the mp3 into a format we can read.
-            AudioInputStream inFileAIS = AudioSystem.getAudioInputStream(fileIn);
-
-            AudioFormat baseFormat = inFileAIS.getFormat();
-            AudioFormat outDataFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, baseFormat.getSampleRate(), 16,
-                    baseFormat.getChannels(), baseFormat.getChannels() * 2, baseFormat.getSampleRate(), false);
-            AudioInputStream inStream;
-            if (AudioSystem.isConversionSupported(outDataFormat, baseFormat)) {
-                inStream = AudioSystem.getAudioInputStream(outDataFormat, inFileAIS);
-            }
-            else {
-                System.out.println("Unable to convert file, continuing: "+fileIn.getName());
-                return null;
-            }
+    /**
+     * Sets the gate that drops low information slices, at ingestion and at query time. Songs must be fingerprinted with
+     * the same gate they are queried with, or at least one that keeps the same slices. There is no gate by default.
+     * @param frameGate the gate, or null to hash every slice
+     */
+    public void setFrameGate(FrameGate frameGate){
+        this.frameGate = frameGate;
+    }
 
-            PCM2PCMConversionProvider conversionProvider = new PCM2PCMConversionProvider();
+    public FrameGate getFrameGate(){
+        return frameGate;
+    }
 
-            if (!conversionProvider.isConversionSupported(getFormat(), outDataFormat)) {
-                System.out.println("Unable to convert file");
-                return null;
+    /**
+     * Runs the frame gate over some audio.
+     * @param samples mono samples at the analysis rate
+     * @param frequency the samples' frequency data from convertToFrequencyDomain
+     * @return for every slice whether to hash it, or null if there is no gate and every slice is hashed
+     */
+    public boolean[] gateFrames(float[] samples, double[][] frequency){
+        FrameGate gate = frameGate;
+        return gate == null ? null : gate.keep(samples, frequency, getChunkSize());
+    }
+
+    /**
+     * Adds a fingerprinted song to the database under a new song id. Safe to call from several threads at once.
+     * Time slices whose hash is FingerprintFile.NO_HASH are not indexed.
+     * @param name of the song
+     * @param fingerprint as returned by fingerprint
+     * @return the id assigned to the song
+     */
+    public int addSong(String name, Fingerprint fingerprint){
+        int songId = nextSongId.getAndIncrement();
+        songNames.put(songId, name);
+        long[] hashes = fingerprint.getHashes();
+        addCoarseHashes(songId, fingerprint);
+        if (segmentedIndex != null) {
+            for(int time = 0; time < hashes.length; time++) {
+                if (hashes[time] != FingerprintFile.NO_HASH) {
+                    segmentedIndex.add(hashes[time], songId, time);
+                }
+            }
+            return songId;
+        }
+        for(int time = 0; time < hashes.length; time++) {
+            if (hashes[time] == FingerprintFile.NO_HASH) {
+                continue;
+            }
+            //          5. Create a datapoint object representing the time and song.
+            DataPoint dp = new DataPoint(songId, time);
+            //          6. Add the datapoint to list of datapoints that correspond with a specific hash in the matchedDB map (creating the list if it doesn't exist)
+            List<DataPoint> matchingP = matcherDB.computeIfAbsent(hashes[time], h -> new ArrayList<>());
+            synchronized (matchingP) {
+                // Ids are handed out in increasing order, so this is an append unless another thread's song got ahead.
+                int i = matchingP.size();
+                while (i > 0 && matchingP.get(i - 1).getSongId() > songId) {
+                    i--;
+                }
+                matchingP.add(i, dp);
             }
+        }
+        return songId;
+    }
 
-            AudioInputStream audioInputStream = conversionProvider.getAudioInputStream(getFormat(), inStream);
+    private void addCoarseHashes(int songId, Fingerprint fingerprint){
+        for (long coarseHash : fingerprint.getCoarseHashes()) {
+            if (coarseHash != FingerprintFile.NO_HASH) {
+                coarseDB.computeIfAbsent(coarseHash, h -> new SongSet()).add(songId);
+            }
+        }
+    }
 
-            int bytesPerFrame = audioInputStream.getFormat().getFrameSize();
-            if (bytesPerFrame == AudioSystem.NOT_SPECIFIED) {
-                // some audio formats may have unspecified frame size
-                // in that case we may read any amount of bytes
-                bytesPerFrame = 1;
+    /**
+     * Bulk loads precomputed fingerprint files (see FingerprintFile), e.g. written by FingerprintExporter workers.
+     * Rather than inserting postings one at a time, all postings are collected into primitive arrays, sorted by hash and
+     * then added to the matcherDB one posting list per hash, each list created at its final size. Files whose hashes
+     * could never match this database's, because they were made with other FingerprintSettings, are all checked first and
+     * fail the import before anything is added. Unreadable files are skipped. Not safe to run while songs are being added.
+     * @param directory searched recursively for fingerprint files
+     * @return the number of songs imported
+     * @throws IllegalArgumentException if any file was made with other settings than getFingerprintSettings
+     */
+    public int importFingerprints(File directory){
+        Set<String> extensions = new HashSet<>(Arrays.asList(FingerprintFile.EXTENSION));
+        List<File> files = new CatalogScanner(extensions, false, Runtime.getRuntime().availableProcessors()).list(directory);
+        FingerprintSettings settings = getFingerprintSettings();
+        int mismatched = 0;
+        for (File file : files) {
+            try {
+                String difference = FingerprintFile.readSettings(file).describeDifference(settings);
+                if (difference != null) {
+                    System.out.println("Fingerprint was made with " + difference + ": " + file.getName());
+                    mismatched++;
+                }
+            } catch (IOException e) {
+                // Reported and skipped below.
             }
-            // Set an arbitrary buffer size of 1024 frames.
-            int numBytes = 1024 * bytesPerFrame;
-            byte[] audioBytes = new byte[numBytes];
+        }
+        if (mismatched > 0) {
+            throw new IllegalArgumentException(mismatched + " fingerprint files were made with other settings than "
+                    + settings + ", nothing imported");
+        }
+        long[] hashes = new long[1 << 16];
+        long[] values = new long[1 << 16];
+        int size = 0;
+        int imported = 0;
+        for (File file : files) {
+            FingerprintFile fingerprintFile;
             try {
-                int numBytesRead = 0;
-                int numFramesRead = 0;
-                // Try to read numBytes bytes from the file.
-                while ((numBytesRead = audioInputStream.read(audioBytes)) != -1) {
-                    // Calculate the number of frames actually read.
-                    numFramesRead = numBytesRead / bytesPerFrame;
-                    totalFramesRead += numFramesRead;
-                    // Here, do something useful with the audio data that's
-                    // now in the audioBytes array...
-                    outputStream.write(audioBytes, 0, numBytesRead);
+                fingerprintFile = FingerprintFile.read(file);
+            } catch (IOException e) {
+                System.out.println("Unable to read fingerprint, continuing: " + file.getName() + " " + e.getMessage());
+                continue;
+            }
+            if (!fingerprintFile.getSettings().equals(settings)) { // Rewritten since the check above.
+                System.out.println("Fingerprint settings changed, continuing: " + file.getName());
+                continue;
+            }
+            int songId = nextSongId.getAndIncrement();
+            songNames.put(songId, fingerprintFile.getSongName());
+            Fingerprint fingerprint = fingerprintFile.getFingerprint();
+            addCoarseHashes(songId, fingerprint);
+            long[] songHashes = fingerprint.getHashes();
+            for (int time = 0; time < songHashes.length; time++) {
+                if (songHashes[time] == FingerprintFile.NO_HASH) {
+                    continue;
                 }
-            } catch (Exception ex) {
-                // Handle the error...
-                System.out.println(ex.getMessage());
-                ex.printStackTrace();
+                if (segmentedIndex != null) {
+                    segmentedIndex.add(songHashes[time], songId, time); // Sorted when its buffer is flushed.
+                    continue;
+                }
+                if (size == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, size * 2);
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                hashes[size] = songHashes[time];
+                values[size] = PostingSort.pack(songId, time);
+                size++;
             }
+            imported++;
+        }
+
+        // Sort merge: each run of equal hashes becomes one posting list.
+        PostingSort.sort(hashes, values, 0, size);
+        for (int start = 0; start < size; ) {
+            int end = start + 1;
+            while (end < size && hashes[end] == hashes[start]) {
+                end++;
+            }
+            List<DataPoint> run = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                run.add(new DataPoint(PostingSort.songId(values[i]), PostingSort.time(values[i])));
+            }
+            List<DataPoint> existing = matcherDB.putIfAbsent(hashes[start], run);
+            if (existing != null) {
+                synchronized (existing) {
+                    boolean sorted = existing.isEmpty()
+                            || existing.get(existing.size() - 1).getSongId() <= run.get(0).getSongId();
+                    existing.addAll(run);
+                    if (!sorted) {
+                        existing.sort(BY_SONG);
+                    }
+                }
+            }
+            start = end;
+        }
+        System.out.println("Imported " + imported + " fingerprints from " + directory.getAbsolutePath());
+        return imported;
+    }
+
+    /**
+     * Decodes an audio file into mono samples at the analysis rate. The decoder output is read as 16 bit pcm into one
+     * reusable buffer and downmixed and resampled in the same pass, without an intermediate 8 bit conversion.
+     * @param fileIn an mp3 file, or any other file AudioSystem can decode
+     * @return mono samples between -1 and 1, or null if the file could not be decoded.
+     */
+    public float[] getSamples(File fileIn){
+        if (!fileIn.isFile()){
+            System.out.println("File does not exist or is a directory: "+fileIn.getName());
+            return null;
+        }
 
+        try (AudioInputStream inFileAIS = AudioSystem.getAudioInputStream(fileIn)) {
+            return decode(inFileAIS, fileIn.getName());
         } catch (Exception e) {
             // Handle the error...
             System.out.println(e.getMessage());
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Decodes an encoded audio stream, such as the bytes of an mp3 or wav file received over the network, into mono
+     * samples at the analysis rate.
+     * @param in encoded audio. It is closed when done.
+     * @param name used in log messages
+     * @return mono samples between -1 and 1, or null if the stream could not be decoded.
+     */
+    public float[] getSamples(InputStream in, String name){
+        try {
+            // AudioSystem needs mark/reset to sniff the format.
+            return decode(AudioSystem.getAudioInputStream(new BufferedInputStream(in)), name);
+        } catch (Exception e) {
+            System.out.println("Unable to decode " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Converts a decoder stream to 16 bit pcm and reads it into the resampler through one reusable buffer.
+     * @param inFileAIS stream to decode. It is closed when done.
+     * @param name used in log messages
+     * @return mono samples at the analysis rate, or null if the stream can't be converted to pcm.
+     * @throws IOException
+     */
+    private float[] decode(AudioInputStream inFileAIS, String name) throws IOException {
+        // First we need to convert the mp3 into a format we can read.
+        AudioFormat baseFormat = inFileAIS.getFormat();
+        AudioFormat outDataFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, baseFormat.getSampleRate(), 16,
+                baseFormat.getChannels(), baseFormat.getChannels() * 2, baseFormat.getSampleRate(), false);
+        AudioInputStream inStream;
+        if (baseFormat.matches(outDataFormat)) {
+            inStream = inFileAIS;
+        }
+        else if (AudioSystem.isConversionSupported(outDataFormat, baseFormat)) {
+            inStream = AudioSystem.getAudioInputStream(outDataFormat, inFileAIS);
+        }
+        else {
+            System.out.println("Unable to convert file, continuing: "+name);
+            return null;
+        }
+
+        PcmResampler resampler = new PcmResampler(outDataFormat, analysisRate);
+        // Read 4096 frames at a time into the same buffer for the whole file.
+        byte[] audioBytes = new byte[4096 * outDataFormat.getFrameSize()];
+        try {
+            int numBytesRead;
+            while ((numBytesRead = inStream.read(audioBytes)) != -1) {
+                resampler.write(audioBytes, 0, numBytesRead);
+            }
+        } finally {
+            inStream.close();
         }
+        return resampler.toArray();
+    }
 
-        return outputStream.toByteArray();
+    /**
+     * Converts raw audio bytes, such as a microphone recording from SoundRecorder, into mono samples at the analysis rate.
+     * @param audioData raw 8 bit signed mono audio at 44100 Hz
+     * @return mono samples between -1 and 1
+     */
+    public float[] convertToSamples(byte[] audioData){
+        return convertToSamples(audioData, getFormat());
+    }
+
+    /**
+     * Converts raw signed pcm bytes in the given format into mono samples at the analysis rate.
+     * @param audioData raw 8 or 16 bit signed pcm audio
+     * @param format describing audioData
+     * @return mono samples between -1 and 1
+     */
+    public float[] convertToSamples(byte[] audioData, AudioFormat format){
+        PcmResampler resampler = new PcmResampler(format, analysisRate);
+        resampler.write(audioData, 0, audioData.length);
+        return resampler.toArray();
     }
 
     /**
@@ -259,44 +585,63 @@ public class SongDatabase {
      * The frequency data are represented using complex numbers with the real and imaginary parts interleaved.
      */
     public double[][] convertToFrequencyDomain(byte[] audioData){
-        int totalSize = audioData.length;
-        int chunkSize = 4096; // Each chunk is 4kb.
-        int sampledChunkSize = totalSize/chunkSize;
+        return convertToFrequencyDomain(convertToSamples(audioData));
+    }
 
-        DoubleFFT_1D fft1D = new DoubleFFT_1D(chunkSize);
+    /**
+     * Given samples at the analysis rate, this uses the fft to convert to the frequency domain by slicing the samples up
+     * into time chunks. The samples are real, so the cheaper real fft is used and expanded to the full complex spectrum.
+     * @param samples mono audio samples at the analysis rate
+     * @return a 2D array of frequency data. The first subscript refers to a slice of time, the second contains the frequency data.
+     * The frequency data are represented using complex numbers with the real and imaginary parts interleaved.
+     */
+    public double[][] convertToFrequencyDomain(float[] samples){
+        int chunkSize = getChunkSize();
+        int sampledChunkSize = samples.length/chunkSize;
+
+        ConcurrentLinkedQueue<DoubleFFT_1D> plans = fftPlans.computeIfAbsent(chunkSize, size -> new ConcurrentLinkedQueue<>());
+        DoubleFFT_1D fft1D = plans.poll();
+        if (fft1D == null) {
+            fft1D = new DoubleFFT_1D(chunkSize);
+        }
         double[][] results = new double[sampledChunkSize][];
 
-        for(int j = 0; j < sampledChunkSize; j++) {
-            double[] fft = new double[chunkSize * 2];
-            for (int i = 0; i < chunkSize; i++) {
-                fft[2*i] = audioData[(j*chunkSize)+i];
-                fft[2*i+1] = 0.0;
+        try {
+            for(int j = 0; j < sampledChunkSize; j++) {
+                double[] fft = new double[chunkSize * 2];
+                for (int i = 0; i < chunkSize; i++) {
+                    fft[i] = samples[(j*chunkSize)+i];
+                }
+                fft1D.realForwardFull(fft);
+                results[j] = fft;
             }
-            fft1D.complexForward(fft);
-            results[j] = fft;
+        } finally {
+            plans.offer(fft1D);
         }
         return results;
     }
 
     /**
-     * Returns an array of file objects containing the mp3 files that are found in the directory
+     * Returns the number of samples in each time slice passed to the fft. This is the power of two closest to giving
+     * each frequency bin the same width it had with 4096 byte chunks of 44100 Hz audio.
+     * @return samples per chunk
+     */
+    public int getChunkSize(){
+        return Integer.highestOneBit((int) Math.round(analysisRate / BIN_WIDTH * 1.5));
+    }
+
+    /**
+     * Returns an array of file objects containing the audio files that are found in the directory and its subdirectories
      * @param directory to search
-     * @return array of mp3 files from the directory.
+     * @return array of audio files from the directory.
+     * @deprecated lists the whole tree before returning. Use CatalogScanner.scan, which hands over each file as soon as
+     * it is found.
      */
+    @Deprecated
     public File[] getAudioFilesFromDirectory(File directory){
-        if (directory.isDirectory()) {
-
-            return directory.listFiles(new FilenameFilter() {
-                public boolean accept(File dir, String filename) {
-                    return filename.endsWith(".mp3");
-                }
-            });
-        }
-        else {
-            // if directory is not actually a directory or doesn't exist, return a zero length array.
-            return new File[0];
-        }
-
+        // if directory is not actually a directory or doesn't exist, this is a zero length array.
+        List<File> files = new CatalogScanner().list(directory);
+        return files.toArray(new File[0]);
     }
 
     /**
@@ -309,16 +654,147 @@ public class SongDatabase {
     }
 
     /**
-     * Returns a list of datapoints that match a specific hash.
+     * Returns the length of one time slice in seconds, used to turn time offsets into positions in a song.
+     * @return seconds of audio covered by each chunk of the fft
+     */
+    public double getSecondsPerChunk() {
+        return getChunkSize() / (double) analysisRate;
+    }
+
+    /**
+     * Calls action with every hash in the matcherDB and its list of datapoints, for reports over the whole index.
+     * Postings of a segmented build live on disk and are not included, see isSegmented. The action holds the posting
+     * list's lock, so songs added meanwhile wait rather than change the list under it.
+     * @param action receives each hash and its datapoints
+     */
+    public void forEachPostingList(BiConsumer<Long, List<DataPoint>> action){
+        matcherDB.forEach((hash, points) -> {
+            synchronized (points) {
+                action.accept(hash, points);
+            }
+        });
+    }
+
+    /**
+     * Calls an action for every hash and its posting list, spread over the common ForkJoinPool by hash bucket.
+     * The action is called from several threads at once. Like forEachPostingList, this only covers the in-memory index,
+     * and the action holds the posting list's lock.
+     * @param action to call with each hash and its datapoints
+     */
+    public void forEachPostingListParallel(BiConsumer<Long, List<DataPoint>> action){
+        matcherDB.forEach(1, (hash, points) -> {
+            synchronized (points) {
+                action.accept(hash, points);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of song ids handed out so far. Ids run from 0 to one less than this.
+     * @return number of songs added
+     */
+    public int getSongCount(){
+        return nextSongId.get();
+    }
+
+    /**
+     * Returns the song that holds the postings of a song, which is the song itself unless it was merged into another one
+     * by mergeDuplicates.
+     * @param songId
+     * @return canonical song id
+     */
+    public int getCanonicalSongId(int songId){
+        return canonicalIds.getOrDefault(songId, songId);
+    }
+
+    /**
+     * Folds duplicate songs into canonical ones, so each recording's postings are stored once. Every posting of a
+     * duplicate is moved to its canonical song, shifted onto the canonical song's time axis, and dropped if the canonical
+     * song already has the same hash at that time. The coarse index is updated the same way. Names of merged songs stay
+     * available through getSongName, and getCanonicalSongId maps them to the song that now matches for them.
+     * Only works on an in-memory index: segments on disk are immutable.
+     * @param canonicalOf canonical song id of every song id, the song itself for songs that are not duplicates. Canonical
+     *                    songs must map to themselves.
+     * @param timeShifts time in the canonical song minus time in the duplicate, for every song id
+     * @return number of postings removed
+     * @throws IllegalStateException if the database is segmented
+     */
+    public long mergeDuplicates(int[] canonicalOf, int[] timeShifts){
+        if (segmentedIndex != null) {
+            throw new IllegalStateException("Duplicates can only be merged in an in-memory index");
+        }
+        AtomicLong removed = new AtomicLong();
+        matcherDB.forEach(1, (hash, points) -> {
+            synchronized (points) {
+                boolean hasDuplicate = false;
+                for (DataPoint d : points) {
+                    if (d.getSongId() < canonicalOf.length && canonicalOf[d.getSongId()] != d.getSongId()) {
+                        hasDuplicate = true;
+                        break;
+                    }
+                }
+                if (!hasDuplicate) {
+                    return;
+                }
+                Set<Long> kept = new HashSet<>();
+                List<DataPoint> merged = new ArrayList<>(points.size());
+                for (DataPoint d : points) {
+                    int songId = d.getSongId();
+                    int time = d.getTime();
+                    if (songId < canonicalOf.length && canonicalOf[songId] != songId) {
+                        time += timeShifts[songId];
+                        songId = canonicalOf[songId];
+                    }
+                    if (kept.add(PostingSort.pack(songId, time))) {
+                        merged.add(songId == d.getSongId() ? d : new DataPoint(songId, time));
+                    }
+                }
+                removed.addAndGet(points.size() - merged.size());
+                merged.sort(BY_SONG);
+                points.clear();
+                points.addAll(merged);
+            }
+        });
+        coarseDB.forEachValue(1, songIds -> songIds.replaceAll(canonicalOf));
+        for (int songId = 0; songId < canonicalOf.length; songId++) {
+            if (canonicalOf[songId] != songId) {
+                canonicalIds.put(songId, canonicalOf[songId]);
+            }
+        }
+        return removed.get();
+    }
+
+    /**
+     * Returns the songs that contain a specific coarse hash.
+     * @param coarseHash
+     * @return set of song ids, or null if no song has the hash
+     */
+    public SongSet getCoarseMatches(long coarseHash){
+        return coarseDB.get(coarseHash);
+    }
+
+    /**
+     * Returns a list of datapoints that match a specific hash, sorted by song id, so the postings of one song can be found
+     * without reading the others. The list is a copy taken under the posting list's lock, since addSong keeps inserting
+     * into the stored list while queries run, e.g. in the RecognitionServer during a load.
      * @param hash
-     * @return
+     * @return the datapoints, or null if no song has the hash
      */
     public List<DataPoint> getMatchingPoints (long hash){
-        return matcherDB.get(hash);
+        if (segmentedIndex != null) {
+            return segmentedIndex.get(hash);
+        }
+        List<DataPoint> points = matcherDB.get(hash);
+        if (points == null) {
+            return null;
+        }
+        synchronized (points) {
+            return new ArrayList<>(points);
+        }
     }
 
     /**
-     * Configure the audioformat we want to read from the mp3 file.
+     * The audioformat of raw byte audio, which is what SoundRecorder produces.
      * @return
      */
     private AudioFormat getFormat() {
@@ -1,6 +1,13 @@
 package edu.macalester.comp124.audiofingerprinter;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.function.LongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Created by sojinoh on 12/5/15.
@@ -8,9 +15,28 @@ import java.util.*;
 
 public class SongFingerprint implements AudioFingerprinter {
 
-    private static int[] RANGE = new int[]{40, 80, 120, 180, 300};
-    private static long FUZ_FACTOR = 2;
+    private static final int[] RANGE = new int[]{40, 80, 120, 180, 300};
+    private static final long FUZ_FACTOR = 2;
+    private static final long COARSE_FUZ_FACTOR = 8; // 4 and 16 shortlist as well; 32 loses most true matches.
+    private static final int LOWEST_BIN = 40; // Lowest and highest fft bins searched for key points, inclusive and exclusive.
+    private static final int HIGHEST_BIN = 300;
+    private static final int[] BAND_OF_BIN = new int[HIGHEST_BIN]; // getIndex of every bin, looked up in the key point loop.
+    static {
+        for (int c = 0; c < HIGHEST_BIN; c++) {
+            int i = 0;
+            while (RANGE[i] < c)
+                i++;
+            BAND_OF_BIN[c] = i;
+        }
+    }
     private SongDatabase songs;
+    private final KeyPointHasher hasher;
+    private volatile boolean earlyExit = true;
+    private volatile int shortlistSize = 10; // Number of candidates the coarse index keeps, or 0 to score every song.
+    private volatile double[] speedFactors = {1.0}; // Playback speeds a query is matched at.
+    private final ConcurrentLinkedQueue<Votes> votePool = new ConcurrentLinkedQueue<>(); // Scratch vote counters for shortlists.
+    private final AtomicLong postingsScanned = new AtomicLong(); // Posting list entries read by queries, summed over all queries.
+    private final AtomicLong postingsSkipped = new AtomicLong(); // Entries of looked up posting lists that queries never read.
 
     /**
      * Constructor.
@@ -18,7 +44,143 @@ public class SongFingerprint implements AudioFingerprinter {
      * @param songs is a database of songs.
      */
     public SongFingerprint(SongDatabase songs) {
+        this(songs, new MixedHasher());
+    }
+
+    /**
+     * Constructor with a specific hashing scheme. The database must be loaded with the same hasher it is queried with.
+     *
+     * @param songs is a database of songs.
+     * @param hasher turns key points into hash keys.
+     */
+    public SongFingerprint(SongDatabase songs, KeyPointHasher hasher) {
         this.songs = songs;
+        this.hasher = hasher;
+    }
+
+    /**
+     * Getter for the hashing scheme.
+     *
+     * @return the hasher that turns key points into hash keys.
+     */
+    public KeyPointHasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Getter for the quantization of the fine hashes.
+     *
+     * @return number of adjacent frequency bins hash treats as the same value.
+     */
+    public long getQuantization() {
+        return FUZ_FACTOR;
+    }
+
+    /**
+     * Getter for the quantization of the coarse hashes.
+     *
+     * @return number of adjacent frequency bins coarseHash treats as the same value.
+     */
+    public long getCoarseQuantization() {
+        return COARSE_FUZ_FACTOR;
+    }
+
+    /**
+     * Sets whether single-result queries stop scanning postings once the leading song can no longer be overtaken.
+     *
+     * @param earlyExit true to prune, false to always scan every posting
+     */
+    public void setEarlyExit(boolean earlyExit) {
+        this.earlyExit = earlyExit;
+    }
+
+    /**
+     * Returns whether single-result queries prune, see setEarlyExit.
+     *
+     * @return true if pruning
+     */
+    public boolean isEarlyExit() {
+        return earlyExit;
+    }
+
+    /**
+     * Sets how many candidate songs the coarse index shortlists before offset scoring. Only postings of shortlisted songs
+     * are read: posting lists are sorted by song id, so scoring jumps from one candidate's postings to the next. 0 turns
+     * the coarse tier off, so every song is scored. The default is 10. Measured with TwoTierRecall on synthetic songs,
+     * with 10 second clips, 10 candidates read 77% of the posting entries of a full scan for 200 songs and scored in
+     * about the same time, and read 37% for 1500 songs and scored about 30% faster, with the same top match for every
+     * clip. Smaller shortlists read less but leave little room for noisy clips, and larger ones stop paying off in small
+     * catalogs: 20 candidates read 92% for 200 songs and were slower. In the RegressionHarness the shortlist kept clean
+     * accuracy and raised it for noisy and loud clips, since fewer unrelated songs are scored.
+     *
+     * @param shortlistSize number of candidates, or 0 for no shortlist
+     */
+    public void setShortlistSize(int shortlistSize) {
+        this.shortlistSize = shortlistSize;
+    }
+
+    /**
+     * Returns how many candidate songs the coarse index shortlists.
+     *
+     * @return number of candidates, or 0 for no shortlist
+     */
+    public int getShortlistSize() {
+        return shortlistSize;
+    }
+
+    /**
+     * Sets the playback speeds queries are matched at, relative to the songs in the database. A query played 3% fast, as
+     * radio stations often do, has every frequency and time shifted by 3% and only matches at a speed factor of about
+     * 1.03. With more than one factor, recognizeMatches searches all of them at once. Factors 1% apart cover the range in
+     * between.
+     *
+     * @param speedFactors playback speeds, e.g. 0.98, 0.99, 1.0, 1.01, 1.02
+     */
+    public void setSpeedFactors(double... speedFactors) {
+        if (speedFactors.length == 0)
+            throw new IllegalArgumentException("At least one speed factor is needed");
+        for (double f : speedFactors) {
+            if (f < 0.5 || f > 2)
+                throw new IllegalArgumentException("Speed factor out of range: " + f);
+        }
+        this.speedFactors = speedFactors.clone();
+    }
+
+    /**
+     * Returns the playback speeds queries are matched at.
+     *
+     * @return speed factors
+     */
+    public double[] getSpeedFactors() {
+        return speedFactors.clone();
+    }
+
+    /**
+     * Returns the number of posting list entries queries have read, summed over all queries so far. Entries probed while
+     * jumping to a shortlisted song count as read.
+     *
+     * @return postings scanned
+     */
+    public long getPostingsScanned() {
+        return postingsScanned.get();
+    }
+
+    /**
+     * Returns the number of entries in the posting lists of query hashes that were never read, because early exit
+     * stopped the scan or the shortlist jumped over them, summed over all queries so far.
+     *
+     * @return postings skipped
+     */
+    public long getPostingsSkipped() {
+        return postingsSkipped.get();
+    }
+
+    /**
+     * Resets the scanned and skipped posting counters.
+     */
+    public void resetQueryStats() {
+        postingsScanned.set(0);
+        postingsSkipped.set(0);
     }
 
     /**
@@ -29,12 +191,19 @@ public class SongFingerprint implements AudioFingerprinter {
      */
     @Override
     public long hash(long[] points) {
-        if (points.length > 3)
-            return (points[3] - (points[3] % FUZ_FACTOR)) * 100000000 + (points[2] - (points[2] % FUZ_FACTOR)) //JUAN BILLION
-                    * 100000 + (points[1] - (points[1] % FUZ_FACTOR)) * 100
-                    + (points[0] - (points[0] % FUZ_FACTOR));
-        else
-            return -1;
+        return hasher.hash(points, FUZ_FACTOR);
+    }
+
+    /**
+     * Returns a low resolution hash of several keypoints, quantized much more coarsely than hash so that it still matches
+     * when some keypoints move a little. Used to cheaply shortlist candidate songs.
+     *
+     * @param points array of key points for a particular slice of time. Must be at least length 4.
+     * @return
+     */
+    @Override
+    public long coarseHash(long[] points) {
+        return hasher.hash(points, COARSE_FUZ_FACTOR);
     }
 
     /**
@@ -64,56 +233,449 @@ public class SongFingerprint implements AudioFingerprinter {
      */
     @Override
     public List<String> recognize(byte[] audioData) {
-        long[][] keyPoints = determineKeyPoints(songs.convertToFrequencyDomain(audioData));//Converted AND determined key points on the same line #efficiencyismymiddlename
-        HashMap<Integer, Map<Integer, Integer>> matches = new HashMap<>(); //Yo dawg, I heard you like hashmaps so I put a hashmap in your hashmap
-        for (int t = 0; keyPoints.length > t; t++) {
-            List<DataPoint> matchingPoints = songs.getMatchingPoints(hash(keyPoints[t])); //Matching Points at time t
+        return toStrings(recognizeMatches(audioData, 0, 1));
+    }
+
+    /**
+     * Overloaded method given a file object to recognize.
+     * Hint: get the raw audio data from the file and call the other overloaded recognize method.
+     *
+     * @param fileIn
+     * @return
+     */
+    @Override
+    public List<String> recognize(File fileIn) {
+        return toStrings(recognizeMatches(fileIn, 0, 1));
+    } //File in, file out
+
+    /**
+     * Turning our SongMatch objects into Strings with # of matches and Song Name: toString methods.
+     *
+     * @param matches typed results
+     * @return one string per match, in the same order
+     */
+    private List<String> toStrings(List<SongMatch> matches) {
+        List<String> results = new ArrayList<String>(matches.size());
+        for (SongMatch s : matches) {
+            results.add(s.toString());
+        }
+        return results;
+    }
+
+    /**
+     * Converts the raw bytes to samples at the analysis rate and scores them.
+     *
+     * @param audioData array of bytes representing a song
+     * @param maxResults maximum number of matches to return, or 0 for no limit
+     * @param minScore minimum number of aligned hashes a song needs to be returned
+     * @return matches sorted from most likely to least likely
+     */
+    @Override
+    public List<SongMatch> recognizeMatches(byte[] audioData, int maxResults, int minScore) {
+        return recognizeMatches(songs.convertToSamples(audioData), maxResults, minScore);
+    }
+
+    /**
+     * Scores every candidate song by the largest bin of its offset histogram and keeps the best maxResults of them.
+     * The top list is kept in primitive arrays while scoring so SongMatch objects are only created for returned results.
+     * If more than one speed factor is set, the query is matched at every speed, see recognizeMatches with speed factors.
+     *
+     * @param samples mono samples at the database's analysis rate
+     * @param maxResults maximum number of matches to return, or 0 for no limit
+     * @param minScore minimum number of aligned hashes a song needs to be returned
+     * @return matches sorted from most likely to least likely
+     */
+    @Override
+    public List<SongMatch> recognizeMatches(float[] samples, int maxResults, int minScore) {
+        double[] factors = speedFactors;
+        if (factors.length > 1 || factors[0] != 1.0)
+            return recognizeMatches(samples, maxResults, minScore, factors);
+        return scoreHashes(queryFingerprint(samples), null, maxResults, minScore, earlyExit && maxResults == 1,
+                songs::getMatchingPoints);
+    }
+
+    /**
+     * Matches a query that may have been played back faster or slower than the songs in the database.
+     * Running a separate query per speed would repeat the fft, the bin powers and most lookups, so instead:
+     * - the fft and the bin powers of the query are computed once
+     * - for each speed factor, the key points are picked from the powers at the rescaled bins, so a peak at bin c*f
+     *   counts as bin c, and query slice t is placed at time t*f
+     * - the distinct hashes of all factors are looked up once, in parallel
+     * - every factor is scored in parallel, and the offset histograms of all factors are fused: each song is scored by
+     *   its best (speed, offset) bin
+     * Early exit is off in this mode, so match counts of different speeds are exact and comparable.
+     *
+     * @param samples mono samples at the database's analysis rate
+     * @param maxResults maximum number of matches to return, or 0 for no limit
+     * @param minScore minimum number of aligned hashes a song needs to be returned
+     * @param factors playback speeds of the query to try, relative to the songs
+     * @return matches sorted from most likely to least likely, each with the speed it matched best at
+     */
+    public List<SongMatch> recognizeMatches(float[] samples, int maxResults, int minScore, double[] factors) {
+        double maxFactor = 0;
+        for (double f : factors) {
+            maxFactor = Math.max(maxFactor, f);
+        }
+        double[][] frequency = songs.convertToFrequencyDomain(samples);
+        double[][] powers = powers(frequency, (int) Math.ceil(HIGHEST_BIN * maxFactor) + 1);
+        boolean[] keep = songs.gateFrames(samples, frequency); // Loudness and flatness do not depend on the speed.
+
+        Fingerprint[] queries = new Fingerprint[factors.length];
+        int[][] times = new int[factors.length][];
+        for (int i = 0; i < factors.length; i++) {
+            long[][] keyPoints = determineKeyPoints(powers, factors[i]);
+            long[] hashes = new long[keyPoints.length];
+            long[] coarseHashes = new long[keyPoints.length];
+            times[i] = new int[keyPoints.length];
+            for (int t = 0; t < keyPoints.length; t++) {
+                boolean kept = keep == null || keep[t];
+                hashes[t] = kept ? hash(keyPoints[t]) : FingerprintFile.NO_HASH;
+                coarseHashes[t] = kept ? coarseHash(keyPoints[t]) : FingerprintFile.NO_HASH;
+                times[i][t] = (int) Math.round(t * factors[i]);
+            }
+            queries[i] = new Fingerprint(hashes, coarseHashes);
+        }
+
+        Set<Long> distinct = new HashSet<>();
+        for (Fingerprint query : queries) {
+            for (long h : query.getHashes()) {
+                if (h != FingerprintFile.NO_HASH)
+                    distinct.add(h);
+            }
+        }
+        ConcurrentHashMap<Long, List<DataPoint>> postings = new ConcurrentHashMap<>();
+        distinct.parallelStream().forEach(h -> {
+            List<DataPoint> matchingPoints = songs.getMatchingPoints(h);
+            if (matchingPoints != null)
+                postings.put(h, matchingPoints);
+        });
+
+        // The best song of the fused histogram is in the top maxResults of the speed it scored best at.
+        List<List<SongMatch>> perFactor = IntStream.range(0, factors.length).parallel()
+                .mapToObj(i -> scoreHashes(queries[i], times[i], maxResults, minScore, false, postings::get))
+                .collect(Collectors.toList());
+        HashMap<Integer, SongMatch> best = new HashMap<>();
+        for (int i = 0; i < factors.length; i++) {
+            for (SongMatch m : perFactor.get(i)) {
+                SongMatch current = best.get(m.getSongId());
+                if (current == null || m.getMatchCount() > current.getMatchCount()) {
+                    best.put(m.getSongId(), new SongMatch(m.getSongId(), m.getSongName(), m.getOffsetSeconds(),
+                            m.getMatchCount(), m.getConfidence(), factors[i]));
+                }
+            }
+        }
+        List<SongMatch> results = new ArrayList<>(best.values());
+        results.sort(Collections.reverseOrder());
+        if (maxResults > 0 && results.size() > maxResults)
+            results = new ArrayList<>(results.subList(0, maxResults));
+        return results;
+    }
+
+    /**
+     * Fingerprints query samples: one fine and one coarse hash per slice of time. Slices the database's frame gate drops
+     * get FingerprintFile.NO_HASH, just like at ingestion.
+     *
+     * @param samples mono samples at the database's analysis rate
+     * @return query fingerprint indexed by time slice
+     */
+    public Fingerprint queryFingerprint(float[] samples) {
+        double[][] frequency = songs.convertToFrequencyDomain(samples);
+        long[][] keyPoints = determineKeyPoints(frequency);
+        boolean[] keep = songs.gateFrames(samples, frequency);
+        long[] hashes = new long[keyPoints.length];
+        long[] coarseHashes = new long[keyPoints.length];
+        for (int t = 0; t < keyPoints.length; t++) {
+            boolean kept = keep == null || keep[t];
+            hashes[t] = kept ? hash(keyPoints[t]) : FingerprintFile.NO_HASH;
+            coarseHashes[t] = kept ? coarseHash(keyPoints[t]) : FingerprintFile.NO_HASH;
+        }
+        return new Fingerprint(hashes, coarseHashes);
+    }
+
+    /**
+     * Votes for candidate songs using the coarse index: each distinct coarse hash of the query gives one vote to every
+     * song that contains it. The songs with the most votes make the shortlist. A query casts many more votes than it has
+     * hashes, so votes are counted in a plain array indexed by song id, borrowed from a pool so concurrent queries never
+     * share one, and only the songs that got votes are reset afterwards.
+     *
+     * @param query fingerprint of the query
+     * @return ids of the shortlisted songs in ascending order, or null if the coarse tier is off
+     */
+    private int[] shortlist(Fingerprint query) {
+        int size = shortlistSize;
+        if (size <= 0)
+            return null;
+        long[] coarseHashes = query.getCoarseHashes().clone();
+        Arrays.sort(coarseHashes);
+        Votes votes = votePool.poll();
+        if (votes == null)
+            votes = new Votes();
+        try {
+            votes.ensureSongs(songs.getSongCount());
+            for (int i = 0; i < coarseHashes.length; i++) {
+                if (coarseHashes[i] == FingerprintFile.NO_HASH || (i > 0 && coarseHashes[i] == coarseHashes[i - 1]))
+                    continue;
+                SongSet songIds = songs.getCoarseMatches(coarseHashes[i]);
+                if (songIds != null)
+                    songIds.forEach(votes);
+            }
+            return votes.best(size);
+        } finally {
+            votes.reset();
+            votePool.offer(votes);
+        }
+    }
+
+    /**
+     * Vote counts of one shortlist, by song id, and the songs that have votes.
+     */
+    private static final class Votes implements IntConsumer {
+        private int[] counts = new int[0];
+        private int[] voted = new int[64];
+        private int votedCount;
+
+        void ensureSongs(int songCount) {
+            if (counts.length < songCount)
+                counts = new int[songCount + (songCount >> 2)];
+        }
+
+        @Override
+        public void accept(int songId) {
+            if (songId >= counts.length)
+                counts = Arrays.copyOf(counts, songId + 1 + (songId >> 2)); // Added after the pass started.
+            if (counts[songId]++ == 0) {
+                if (votedCount == voted.length)
+                    voted = Arrays.copyOf(voted, votedCount * 2);
+                voted[votedCount++] = songId;
+            }
+        }
+
+        /**
+         * Returns the size songs with the most votes, in ascending order of song id.
+         */
+        int[] best(int size) {
+            long[] ranked = new long[votedCount]; // Votes in the high half, song id in the low half.
+            for (int i = 0; i < votedCount; i++) {
+                ranked[i] = ((long) counts[voted[i]] << 32) | voted[i];
+            }
+            Arrays.sort(ranked);
+            int[] best = new int[Math.min(size, votedCount)];
+            for (int i = 0; i < best.length; i++) {
+                best[i] = (int) ranked[votedCount - 1 - i];
+            }
+            Arrays.sort(best);
+            return best;
+        }
+
+        void reset() {
+            for (int i = 0; i < votedCount; i++) {
+                counts[voted[i]] = 0;
+            }
+            votedCount = 0;
+        }
+    }
+
+
+    /**
+     * Recognizes several already hashed queries together. The distinct hashes of the whole batch are looked up in the
+     * database in one pass, so a hash shared by several queries is only fetched once, and then each query is scored
+     * against those postings. Queries are matched at normal speed only.
+     *
+     * @param queries query fingerprints
+     * @param maxResults maximum number of matches to return per query, or 0 for no limit
+     * @param minScores minimum number of aligned hashes a song needs, per query
+     * @return the matches for each query, in the same order as queries
+     */
+    public List<List<SongMatch>> recognizeBatch(List<Fingerprint> queries, int[] maxResults, int[] minScores) {
+        HashMap<Long, List<DataPoint>> postings = new HashMap<>();
+        for (Fingerprint query : queries) {
+            for (long h : query.getHashes()) {
+                if (h != FingerprintFile.NO_HASH && !postings.containsKey(h))
+                    postings.put(h, songs.getMatchingPoints(h));
+            }
+        }
+        List<List<SongMatch>> results = new ArrayList<>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            results.add(scoreHashes(queries.get(i), null, maxResults[i], minScores[i], earlyExit && maxResults[i] == 1,
+                    postings::get));
+        }
+        return results;
+    }
+
+    /**
+     * Scores the hashes of a query, one per time slice, against the database. Slices without a hash (NO_HASH) are
+     * skipped, and confidence is the match count over the number of hashed slices.
+     * If the coarse tier is on, only postings of songs on the shortlist are read. Posting lists are sorted by song id, so
+     * the scan gallops from one candidate's postings to the next (probing 1, 2, 4, ... entries ahead and then binary
+     * searching the last step), which reads about log(gap) entries per candidate instead of every entry in between.
+     * Repeated hashes are looked up once, and the distinct hashes are processed rarest first, by length of their posting
+     * list. Every query slice adds at most one to any single (song, offset) bin, so the leader can only be overtaken if
+     * the runner up's best bin plus the number of slices still to process beats it. With prune on, scanning stops as soon
+     * as that can no longer happen and the leader has reached minScore, so the same song is returned as without pruning,
+     * but its match count and confidence are lower bounds. Only use it when just the best match is asked for. Bins are counted in an OffsetHistogram, so the loop over postings does no boxing.
+     *
+     * @param query fingerprint of the query
+     * @param times time of each query slice on the song's time axis, or null if slice t is at time t
+     * @param maxResults maximum number of matches to return, or 0 for no limit
+     * @param minScore minimum number of aligned hashes a song needs to be returned
+     * @param prune whether to stop scanning once the leader is safe
+     * @param lookup returns the postings of a hash, or null if there are none
+     * @return matches sorted from most likely to least likely
+     */
+    private List<SongMatch> scoreHashes(Fingerprint query, int[] times, int maxResults, int minScore, boolean prune,
+                                        LongFunction<List<DataPoint>> lookup) {
+        long[] hashes = query.getHashes();
+        int[] candidates = shortlist(query);
+        // Group the query slices by hash so each posting list is fetched once.
+        HashMap<Long, int[]> slicesByHash = new LinkedHashMap<>();
+        int hashedSlices = 0;
+        for (int t = 0; t < hashes.length; t++) {
+            if (hashes[t] == FingerprintFile.NO_HASH)
+                continue; // Dropped by the frame gate.
+            hashedSlices++;
+            int time = times == null ? t : times[t];
+            int[] group = slicesByHash.get(hashes[t]);
+            if (group == null) {
+                slicesByHash.put(hashes[t], new int[]{time});
+            } else {
+                group = Arrays.copyOf(group, group.length + 1);
+                group[group.length - 1] = time;
+                slicesByHash.put(hashes[t], group);
+            }
+        }
+        ArrayList<List<DataPoint>> postings = new ArrayList<>(slicesByHash.size());
+        int[][] slices = new int[slicesByHash.size()][];
+        long[] order = new long[slicesByHash.size()]; // Posting length in the high half, group index in the low half.
+        int groups = 0;
+        int remaining = 0; // Query slices whose postings have not been scanned yet.
+        long listed = 0; // Entries in the posting lists of the query's hashes.
+        for (Map.Entry<Long, int[]> entry : slicesByHash.entrySet()) {
+            List<DataPoint> matchingPoints = lookup.apply(entry.getKey());
             if (matchingPoints != null) {
-                for (DataPoint d : matchingPoints) {//Use offsets to create MORE hashmaps, which we then put back into our original hashmap of matches for each datapoint
-                    HashMap<Integer, Integer> offsets = new HashMap<>();
-                    int offset = d.getTime() - t; //offset calculation
-                    if (!matches.containsKey(d.getSongId())) {
-                        offsets.put(offset, 1);
-                        matches.put(d.getSongId(), offsets);
-                    } else if (!matches.get(d.getSongId()).containsKey(offset))
-                        matches.get(d.getSongId()).put(offset, 1);
-                    else if (matches.containsKey(d.getSongId()))
-                        matches.get(d.getSongId()).put(offset, matches.get(d.getSongId()).get(offset) + 1);
+                postings.add(matchingPoints);
+                slices[groups] = entry.getValue();
+                order[groups] = ((long) matchingPoints.size() << 32) | groups;
+                groups++;
+                remaining += entry.getValue().length;
+                listed += matchingPoints.size();
+            }
+        }
+        Arrays.sort(order, 0, groups);
+        if (candidates != null && candidates.length == 0)
+            groups = 0; // No song shares a coarse hash with the query.
+
+        int leader = -1;
+        int leaderScore = 0;
+        int runnerUpScore = 0;
+        long scanned = 0;
+        OffsetHistogram histogram = new OffsetHistogram((int) Math.min(listed, 1 << 16));
+        for (int g = 0; g < groups; g++) {
+            if (prune && leaderScore >= minScore && leaderScore - runnerUpScore > remaining)
+                break; // Nobody can catch the leader anymore, and it will be returned.
+            int group = (int) order[g];
+            List<DataPoint> matchingPoints = postings.get(group); //Matching Points for every slice with this hash
+            int[] queryTimes = slices[group];
+            int c = 0; // Next shortlisted candidate.
+            for (int p = 0, n = matchingPoints.size(); p < n; ) {//Use offsets to build a histogram per song
+                DataPoint d = matchingPoints.get(p);
+                int songId = d.getSongId();
+                if (candidates != null && candidates[c] != songId) {
+                    if (candidates[c] < songId) {
+                        if (++c == candidates.length)
+                            break; // No candidate left in the rest of the list.
+                        continue;
+                    }
+                    // Gallop to the first posting of the candidate. low is always before it, high at or past it.
+                    int target = candidates[c];
+                    int low = p;
+                    int high = p + 1;
+                    for (int step = 1; high < n; step <<= 1) {
+                        scanned++;
+                        if (matchingPoints.get(high).getSongId() >= target)
+                            break;
+                        low = high;
+                        high = low + step * 2;
+                    }
+                    high = Math.min(high, n);
+                    while (low + 1 < high) {
+                        int mid = (low + high) >>> 1;
+                        scanned++;
+                        if (matchingPoints.get(mid).getSongId() < target) {
+                            low = mid;
+                        } else {
+                            high = mid;
+                        }
+                    }
+                    p = high;
+                    continue;
+                }
+                p++;
+                scanned++;
+                for (int t : queryTimes) {
+                    int count = histogram.add(songId, d.getTime() - t); //offset calculation
+                    if (songId == leader) {
+                        leaderScore = Math.max(leaderScore, count);
+                    } else if (count > leaderScore) {
+                        runnerUpScore = leaderScore;
+                        leader = songId;
+                        leaderScore = count;
+                    } else if (count > runnerUpScore) {
+                        runnerUpScore = count;
+                    }
                 }
             }
+            remaining -= queryTimes.length;
         }
+        postingsScanned.addAndGet(scanned);
+        postingsSkipped.addAndGet(Math.max(0, listed - scanned));
 
-        List<SongMatch> matchList = new ArrayList<SongMatch>();//Sort, organize, spit out useful data
-        for (Map.Entry<Integer, Map<Integer, Integer>> entry : matches.entrySet()) {
-            Integer max = 0;
-            for (Map.Entry<Integer, Integer> entries : entry.getValue().entrySet()) {
-                if (max < entries.getValue())
-                    max = entries.getValue();
+        int songCount = histogram.songCount();
+        int capacity = maxResults > 0 ? Math.min(maxResults, songCount) : songCount;
+        int[] topIds = new int[capacity];
+        int[] topCounts = new int[capacity];
+        int[] topOffsets = new int[capacity];
+        int size = 0;
+        for (int song = 0; song < songCount; song++) {
+            int max = histogram.bestCount(song);
+            if (max < minScore || (size == capacity && (capacity == 0 || max <= topCounts[size - 1])))
+                continue;
+            int i = size < capacity ? size++ : size - 1; //Insertion into the sorted top list, dropping the current last place when full
+            while (i > 0 && topCounts[i - 1] < max) {
+                topIds[i] = topIds[i - 1];
+                topCounts[i] = topCounts[i - 1];
+                topOffsets[i] = topOffsets[i - 1];
+                i--;
             }
-            matchList.add(new SongMatch(max, entry.getKey().toString()));
+            topIds[i] = histogram.songId(song);
+            topCounts[i] = max;
+            topOffsets[i] = histogram.bestOffset(song);
         }
-///Sort sort sort
-        Collections.sort(matchList);
-        Collections.reverse(matchList);
 
-        List<String> results = new ArrayList<String>(); //Turning our SongMatch objects into Strings with # of matches and Song Name: toString methods.
-        for (SongMatch s : matchList) {
-            results.add(songs.getSongName(Integer.parseInt(s.getSongName())) + " " + s.toString()); //Forcibly converting a String to an int
+        double secondsPerChunk = songs.getSecondsPerChunk();
+        List<SongMatch> results = new ArrayList<SongMatch>(size);
+        for (int i = 0; i < size; i++) {
+            double confidence = hashedSlices == 0 ? 0 : Math.min(1.0, (double) topCounts[i] / hashedSlices);
+            results.add(new SongMatch(topIds[i], songs.getSongName(topIds[i]), topOffsets[i] * secondsPerChunk,
+                    topCounts[i], confidence));
         }
         return results;
     }
 
     /**
-     * Overloaded method given a file object to recognize.
-     * Hint: get the raw audio data from the file and call the other overloaded recognize method.
+     * Overloaded method given a file object to recognize with typed results.
      *
      * @param fileIn
-     * @return
+     * @param maxResults maximum number of matches to return, or 0 for no limit
+     * @param minScore minimum number of aligned hashes a song needs to be returned
+     * @return matches sorted from most likely to least likely
      */
     @Override
-    public List<String> recognize(File fileIn) {
-        return recognize(songs.getRawData(fileIn));
-    } //File in, file out
+    public List<SongMatch> recognizeMatches(File fileIn, int maxResults, int minScore) {
+        float[] samples = songs.getSamples(fileIn);
+        if (samples == null)
+            return new ArrayList<SongMatch>();
+        return recognizeMatches(samples, maxResults, minScore);
+    }
 
     /**
      * Getter method
@@ -140,18 +702,75 @@ public class SongFingerprint implements AudioFingerprinter {
      */
     @Override
     public long[][] determineKeyPoints(double[][] results) {
-        long[][] keyPoints = new long[results.length][5]; //2d arrays
-        double[][] highScores = new double[results.length][5];
-        for (int r = 0; r < results.length; r++) { //nested row column traversal, r(ow) and c(olumn). Column stands for frequency, r stands for something I accidentally forgot oops
-            for (int c = 40; c < 300; c++) {
-                double re = results[r][2 * c];
-                double im = results[r][2 * c + 1];
-                double mag = Math.log(Math.sqrt(re * re + im * im) + 1);
-                int index = getIndex(c);
-                if (mag > highScores[r][index]) {
-                    highScores[r][index] = c;
-                    keyPoints[r][index] = (long) mag;
-                }
+        return determineKeyPoints(powers(results, HIGHEST_BIN), 1.0);
+    }
+
+    /**
+     * Computes the power, re * re + im * im, of the lowest bins of every time slice, the part of the fft work that key
+     * point selection at any speed can share. Key points only depend on which bin is the largest, and the log magnitude
+     * log(sqrt(power) + 1) grows with the power, so comparing powers picks the same bins without a log and a square root
+     * per bin.
+     *
+     * @param results frequency data as passed to determineKeyPoints
+     * @param bins number of bins to compute, starting at bin 0
+     * @return powers indexed by time slice and bin
+     */
+    private double[][] powers(double[][] results, int bins) {
+        double[][] powers = new double[results.length][];
+        for (int r = 0; r < results.length; r++) {
+            double[] spectrum = results[r];
+            int n = Math.min(bins, spectrum.length / 2);
+            double[] power = new double[n];
+            for (int c = 0; c < n; c++) {
+                double re = spectrum[2 * c];
+                double im = spectrum[2 * c + 1];
+                power[c] = re * re + im * im;
+            }
+            powers[r] = power;
+        }
+        return powers;
+    }
+
+    /**
+     * Picks the key points of audio played back at a given speed. Bin c of the song shows up at bin c*speed of the query,
+     * so the key point of each band is searched at the rescaled bins but recorded as the song's bin.
+     *
+     * @param powers bin powers indexed by time slice and bin
+     * @param speed playback speed of the audio relative to the songs, 1.0 for normal speed
+     * @return key points as returned by determineKeyPoints
+     */
+    private long[][] determineKeyPoints(double[][] powers, double speed) {
+        int[] bins = new int[HIGHEST_BIN]; // Query bin to read for each song bin.
+        for (int c = LOWEST_BIN; c < HIGHEST_BIN; c++) {
+            bins[c] = (int) Math.round(c * speed);
+        }
+        long[][] keyPoints = new long[powers.length][];
+        double[] highScores = new double[RANGE.length];
+        for (int r = 0; r < powers.length; r++) { //nested row column traversal, r(ow) and c(olumn). Column stands for frequency, r stands for something I accidentally forgot oops
+            keyPoints[r] = keyPoints(powers[r], bins, highScores);
+        }
+        return keyPoints;
+    }
+
+    /**
+     * Finds the loudest bin of every band in one time slice.
+     *
+     * @param power bin powers of the slice
+     * @param bins query bin to read for each song bin
+     * @param highScores scratch space, one entry per band
+     * @return the song bin of the loudest bin in each band, or 0 for a silent band
+     */
+    private static long[] keyPoints(double[] power, int[] bins, double[] highScores) {
+        long[] keyPoints = new long[RANGE.length];
+        Arrays.fill(highScores, 0);
+        for (int c = LOWEST_BIN; c < HIGHEST_BIN; c++) {
+            int bin = bins[c];
+            if (bin >= power.length)
+                break;
+            int index = BAND_OF_BIN[c];
+            if (power[bin] > highScores[index]) {
+                highScores[index] = power[bin];
+                keyPoints[index] = c;
             }
         }
         return keyPoints;
@@ -4,11 +4,41 @@ package edu.macalester.comp124.audiofingerprinter;
  * Created by sojinoh on 12/10/15.
  */
 public class SongMatch implements Comparable <SongMatch>{ //SongMatch object for use in reocgnize method
+    private int songId;
+    private String songName;
+    private double offsetSeconds;
     private int matchCount;
-    private String songID;
-    public SongMatch (int matchCount, String songID){
+    private double confidence;
+    private double speedFactor;
+
+    /**
+     * Constructor for a scored match against one song in the database.
+     * @param songId id of the matching song
+     * @param songName name of the matching song
+     * @param offsetSeconds position in the song, in seconds, where the query lines up best
+     * @param matchCount number of hashes that agree on that best offset
+     * @param confidence matchCount normalized by the number of hashed query slices, between 0 and 1
+     */
+    public SongMatch (int songId, String songName, double offsetSeconds, int matchCount, double confidence){
+        this(songId, songName, offsetSeconds, matchCount, confidence, 1.0);
+    }
+
+    /**
+     * Constructor for a match found with the query played back at a different speed.
+     * @param songId id of the matching song
+     * @param songName name of the matching song
+     * @param offsetSeconds position in the song, in seconds, where the query lines up best
+     * @param matchCount number of hashes that agree on that best offset
+     * @param confidence matchCount normalized by the number of hashed query slices, between 0 and 1
+     * @param speedFactor playback speed of the query relative to the song, e.g. 1.03 for 3% fast
+     */
+    public SongMatch (int songId, String songName, double offsetSeconds, int matchCount, double confidence, double speedFactor){
+        this.songId=songId;
+        this.songName=songName;
+        this.offsetSeconds=offsetSeconds;
         this.matchCount=matchCount;
-        this.songID=songID;
+        this.confidence=confidence;
+        this.speedFactor=speedFactor;
     }
     /**
      * Compares SongMatch objects by int MatchCount
@@ -16,25 +46,33 @@ public class SongMatch implements Comparable <SongMatch>{ //SongMatch object for
      * @return int
      */
     public int compareTo(SongMatch o){
-        return ((Integer) matchCount).compareTo(o.matchCount);
+        return Integer.compare(matchCount, o.matchCount);
+    }
+    public int getSongId() {
+        return songId;
+    }
+    public String getSongName() {
+        return songName;
+    }
+    public double getOffsetSeconds() {
+        return offsetSeconds;
     }
     public int getMatchCount() {
         return matchCount;
     }
-    public void setMatchCount(int matchCount) {
-        this.matchCount = matchCount;
-    }
-    public String getSongName() {
-        return songID;
+    public double getConfidence() {
+        return confidence;
     }
-    public void setSongName(String songID) {
-        this.songID = songID;
+    public double getSpeedFactor() {
+        return speedFactor;
     }
     /**
      * Returns standard toString with private variables
      * @return String
      */
     public String toString(){
-        return "Song: " + songID + " Match Count: " + matchCount;
+        return "Song: " + songName + " Match Count: " + matchCount
+                + String.format(" Offset: %.2fs Confidence: %.3f", offsetSeconds, confidence)
+                + (speedFactor == 1.0 ? "" : String.format(" Speed: %.3f", speedFactor));
     }
 }
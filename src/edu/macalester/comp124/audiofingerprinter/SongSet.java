@@ -0,0 +1,97 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of song ids kept as a sorted int array, one per coarse hash in the coarse index. A set of boxed Integers costs
+ * a hash table node and an Integer object per song, several times the fine posting it is meant to save; this costs 4
+ * bytes per song plus one array. Song ids mostly arrive in increasing order, so adding one is usually an append.
+ * Safe to use from several threads at once.
+ */
+public final class SongSet {
+
+    private int[] ids = new int[2];
+    private int size;
+
+    /**
+     * Adds a song.
+     * @param songId
+     */
+    public synchronized void add(int songId) {
+        if (size > 0 && ids[size - 1] >= songId) {
+            int i = Arrays.binarySearch(ids, 0, size, songId);
+            if (i >= 0) {
+                return;
+            }
+            insert(-i - 1, songId);
+            return;
+        }
+        insert(size, songId);
+    }
+
+    private void insert(int index, int songId) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+        }
+        System.arraycopy(ids, index, ids, index + 1, size - index);
+        ids[index] = songId;
+        size++;
+    }
+
+    /**
+     * Returns whether a song is in the set.
+     * @param songId
+     * @return true if it was added
+     */
+    public synchronized boolean contains(int songId) {
+        return Arrays.binarySearch(ids, 0, size, songId) >= 0;
+    }
+
+    /**
+     * Returns the number of songs in the set.
+     * @return size
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Calls action with every song id in ascending order, holding the set's lock.
+     * @param action receives each song id
+     */
+    public synchronized void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(ids[i]);
+        }
+    }
+
+    /**
+     * Replaces every song id by the one it maps to, e.g. duplicates by their canonical song, and drops the repeats.
+     * @param canonicalOf new id of every song id. Ids past its end are kept as they are.
+     */
+    public synchronized void replaceAll(int[] canonicalOf) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] < canonicalOf.length) {
+                ids[i] = canonicalOf[ids[i]];
+            }
+        }
+        Arrays.sort(ids, 0, size);
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (kept == 0 || ids[kept - 1] != ids[i]) {
+                ids[kept++] = ids[i];
+            }
+        }
+        size = kept;
+    }
+
+    /**
+     * Shrinks the array to the number of songs, once no more songs are expected.
+     */
+    public synchronized void trim() {
+        if (ids.length > size) {
+            ids = Arrays.copyOf(ids, size);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Measures speed tolerant matching on a synthetic catalog. Clips played back faster than the songs are recognized three
+ * ways, and the report gives the accuracy and the cpu time per query of each:
+ *      - plain: normal speed only
+ *      - independent: one full query per speed factor, with the clip resampled back to normal speed each time
+ *      - fused: one query searching every speed factor, sharing the fft, the bin powers and the lookups
+ * The extra cost per factor is the cpu time a query spends beyond a plain query, divided by the number of extra factors.
+ * Early exit is off: the fused query always scans every posting, so plain and independent queries must as well, or they
+ * would look cheaper just by pruning.
+ */
+public class SpeedToleranceBenchmark {
+
+    private static final int ROUNDS = 3; // The first round warms up the jit and is not reported.
+
+    /**
+     * Runs the benchmark.
+     * @param args optionally the number of songs (default 200), the playback speed of the clips (default 1.03) and the
+     *             largest speed change searched (default 0.04, searched in steps of 0.01 both ways)
+     */
+    public static void main(String[] args) {
+        int songCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1.03;
+        double range = args.length > 2 ? Double.parseDouble(args[2]) : 0.04;
+        int steps = (int) Math.round(range / 0.01);
+        double[] factors = new double[2 * steps + 1];
+        for (int i = 0; i < factors.length; i++) {
+            factors[i] = 1.0 + (i - steps) * 0.01;
+        }
+
+        SongDatabase db = new SongDatabase();
+        SongFingerprint rec = new SongFingerprint(db);
+        db.setFingerprinter(rec);
+        rec.setEarlyExit(false);
+        int rate = db.getAnalysisRate();
+        float[][] clips = new float[songCount][];
+        for (int s = 0; s < songCount; s++) {
+            float[] song = SyntheticAudio.song(s, 30, rate);
+            db.addSong("song" + s, db.fingerprint(song));
+            clips[s] = SyntheticAudio.changeSpeed(SyntheticAudio.clip(song, 10, 8, rate), speed);
+        }
+        System.out.printf("%d songs, clips at speed %.3f, %d factors from %.2f to %.2f%n", songCount, speed,
+                factors.length, factors[0], factors[factors.length - 1]);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            double[] plain = run(rec, clips, new double[]{1.0}, false);
+            double[] independent = run(rec, clips, factors, true);
+            double[] fused = run(rec, clips, factors, false);
+            if (round == 0) {
+                continue;
+            }
+            System.out.printf("round %d%n", round);
+            System.out.printf("  plain:       accuracy=%.3f cpu=%.2fms/query%n", plain[0], plain[1]);
+            System.out.printf("  independent: accuracy=%.3f cpu=%.2fms/query, %.2fms per extra factor%n",
+                    independent[0], independent[1], (independent[1] - plain[1]) / (factors.length - 1));
+            System.out.printf("  fused:       accuracy=%.3f cpu=%.2fms/query, %.2fms per extra factor%n",
+                    fused[0], fused[1], (fused[1] - plain[1]) / (factors.length - 1));
+        }
+        rec.setSpeedFactors(1.0);
+    }
+
+    /**
+     * Recognizes every clip and returns the share recognized as the right song and the process cpu time per query.
+     */
+    private static double[] run(SongFingerprint rec, float[][] clips, double[] factors, boolean independent) {
+        int correct = 0;
+        long start = processCpuTime();
+        for (int s = 0; s < clips.length; s++) {
+            SongMatch best = null;
+            if (independent) {
+                rec.setSpeedFactors(1.0);
+                for (double f : factors) {
+                    List<SongMatch> matches = rec.recognizeMatches(SyntheticAudio.changeSpeed(clips[s], 1 / f), 1, 1);
+                    if (!matches.isEmpty() && (best == null || matches.get(0).getMatchCount() > best.getMatchCount())) {
+                        best = matches.get(0);
+                    }
+                }
+            } else {
+                rec.setSpeedFactors(factors);
+                List<SongMatch> matches = rec.recognizeMatches(clips[s], 1, 1);
+                best = matches.isEmpty() ? null : matches.get(0);
+            }
+            if (best != null && best.getSongId() == s) {
+                correct++;
+            }
+        }
+        double cpuMillis = (processCpuTime() - start) / 1e6;
+        return new double[]{(double) correct / clips.length, cpuMillis / clips.length};
+    }
+
+    private static long processCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+}
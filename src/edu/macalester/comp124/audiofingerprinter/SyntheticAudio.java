@@ -0,0 +1,147 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates reproducible test audio without any files: songs made of short random chords, and the distortions a
+ * recognizer has to cope with. Used by the benchmarks so they can run anywhere.
+ */
+public class SyntheticAudio {
+
+    private static final double NOTE_SECONDS = 0.25;
+    private static final int TONES_PER_NOTE = 3;
+    private static final double LOWEST_TONE = 450; // Hz, just above the lowest key point band
+    private static final double HIGHEST_TONE = 3200; // Hz, just below the highest key point band
+
+    private SyntheticAudio() {
+    }
+
+    /**
+     * Generates a song: a sequence of quarter second chords of random tones in the range the key points cover.
+     * The same seed always gives the same song.
+     * @param seed identifies the song
+     * @param seconds length of the song
+     * @param sampleRate sample rate in Hz
+     * @return mono samples between -1 and 1
+     */
+    public static float[] song(long seed, double seconds, int sampleRate) {
+        Random random = new Random(seed);
+        float[] samples = new float[(int) (seconds * sampleRate)];
+        int noteLength = (int) (NOTE_SECONDS * sampleRate);
+        for (int start = 0; start < samples.length; start += noteLength) {
+            int end = Math.min(samples.length, start + noteLength);
+            for (int k = 0; k < TONES_PER_NOTE; k++) {
+                double frequency = LOWEST_TONE + random.nextDouble() * (HIGHEST_TONE - LOWEST_TONE);
+                // Sine oscillator by recurrence, sin(x + w) = 2 cos(w) sin(x) - sin(x - w), to avoid a Math.sin per sample.
+                double w = 2 * Math.PI * frequency / sampleRate;
+                double coefficient = 2 * Math.cos(w);
+                double previous = Math.sin(w * (start - 1));
+                double current = Math.sin(w * start);
+                for (int i = start; i < end; i++) {
+                    samples[i] += (float) (0.8 * current / TONES_PER_NOTE);
+                    double next = coefficient * current - previous;
+                    previous = current;
+                    current = next;
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Cuts a clip out of a song.
+     * @param samples the song
+     * @param fromSeconds start of the clip
+     * @param seconds length of the clip
+     * @param sampleRate sample rate in Hz
+     * @return the clip, shorter if the song ends first
+     */
+    public static float[] clip(float[] samples, double fromSeconds, double seconds, int sampleRate) {
+        int from = Math.min(samples.length, (int) (fromSeconds * sampleRate));
+        int to = Math.min(samples.length, from + (int) (seconds * sampleRate));
+        return Arrays.copyOfRange(samples, from, to);
+    }
+
+    /**
+     * Plays samples back at a different speed, the way a sped up broadcast does: pitch and tempo change together.
+     * Uses linear interpolation.
+     * @param samples audio to change
+     * @param speed playback speed, e.g. 1.03 for 3% fast
+     * @return the changed audio, at the same sample rate
+     */
+    public static float[] changeSpeed(float[] samples, double speed) {
+        float[] out = new float[(int) ((samples.length - 1) / speed) + 1];
+        for (int i = 0; i < out.length; i++) {
+            double position = i * speed;
+            int index = (int) position;
+            double fraction = position - index;
+            float next = index + 1 < samples.length ? samples[index + 1] : samples[index];
+            out[i] = (float) (samples[index] + fraction * (next - samples[index]));
+        }
+        return out;
+    }
+
+    /**
+     * Adds white noise.
+     * @param samples audio to change
+     * @param rms level of the noise, e.g. 0.01 for 40 dB below full scale
+     * @param seed makes the noise reproducible
+     * @return a noisy copy
+     */
+    public static float[] addNoise(float[] samples, double rms, long seed) {
+        Random random = new Random(seed);
+        float[] out = new float[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            out[i] = (float) (samples[i] + rms * random.nextGaussian());
+        }
+        return out;
+    }
+
+    /**
+     * Scales the volume of part of the audio with a linear ramp, e.g. for fades.
+     * @param samples audio to change in place
+     * @param from first sample, inclusive
+     * @param to last sample, exclusive
+     * @param startGain gain at from
+     * @param endGain gain at to
+     */
+    public static void ramp(float[] samples, int from, int to, double startGain, double endGain) {
+        for (int i = from; i < to; i++) {
+            samples[i] *= (float) (startGain + (endGain - startGain) * (i - from) / (to - from));
+        }
+    }
+
+    /**
+     * Encodes samples as signed pcm bytes, copying them into every channel. The samples are not resampled, so they must
+     * already be at the format's sample rate.
+     * @param samples mono samples between -1 and 1
+     * @param format signed 8 or 16 bit pcm format to encode to
+     * @return audio data in that format
+     */
+    public static byte[] encode(float[] samples, AudioFormat format) {
+        int bytesPerSample = format.getSampleSizeInBits() / 8;
+        int channels = format.getChannels();
+        byte[] data = new byte[samples.length * bytesPerSample * channels];
+        int k = 0;
+        for (float sample : samples) {
+            float clipped = Math.max(-1f, Math.min(1f, sample));
+            for (int c = 0; c < channels; c++) {
+                if (bytesPerSample == 1) {
+                    data[k++] = (byte) Math.round(clipped * 127);
+                } else {
+                    short value = (short) Math.round(clipped * 32767);
+                    if (format.isBigEndian()) {
+                        data[k++] = (byte) (value >> 8);
+                        data[k++] = (byte) value;
+                    } else {
+                        data[k++] = (byte) value;
+                        data[k++] = (byte) (value >> 8);
+                    }
+                }
+            }
+        }
+        return data;
+    }
+}
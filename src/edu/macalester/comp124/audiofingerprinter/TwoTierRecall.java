@@ -0,0 +1,125 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the recall and the cost of the coarse shortlist against the single tier path. A clip from the middle of every
+ * song is recognized twice, once scoring every song and once scoring only the shortlist, and the report gives how often
+ * the best match agrees, how many posting list entries each path read and the time each path takes to look up and score
+ * a hashed clip, including the coarse vote for the two tier path. A single query takes well under a millisecond, so each
+ * path is timed REPEATS times and the fastest run counts, which keeps garbage collection and other noise out. The songs are read from a directory, or generated with SyntheticAudio.
+ */
+public class TwoTierRecall {
+
+    private static final int REPEATS = 5; // Each path is timed this many times per clip and the fastest run counts.
+
+    /**
+     * Runs the comparison.
+     * @param args directory of songs or a number of synthetic songs, and optionally the shortlist size (default the
+     *             recognizer's, 10) and clip length in seconds (default 10)
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: TwoTierRecall <song directory | number of synthetic songs> [shortlist size] [clip seconds]");
+            return;
+        }
+        int clipSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        SongDatabase db = new SongDatabase();
+        SongFingerprint rec = new SongFingerprint(db);
+        db.setFingerprinter(rec);
+        int shortlistSize = args.length > 1 ? Integer.parseInt(args[1]) : rec.getShortlistSize();
+        long[] totals = new long[6]; // Queries, agreements, entries read and nanoseconds of the single and two tier paths.
+        if (args[0].matches("\\d+")) {
+            int songCount = Integer.parseInt(args[0]);
+            for (int s = 0; s < songCount; s++) {
+                db.addSong("song" + s, db.fingerprint(SyntheticAudio.song(s, 30, db.getAnalysisRate())));
+            }
+            db.finishBuild();
+            warmUp(rec);
+            for (int s = 0; s < songCount; s++) {
+                compare(db, rec, SyntheticAudio.song(s, 30, db.getAnalysisRate()), shortlistSize, clipSeconds, totals);
+            }
+        } else {
+            db.loadDatabase(args[0]);
+            warmUp(rec);
+            // Files are queried as the scanner finds them. The scanner calls from several threads, so one query runs at a time.
+            try {
+                new CatalogScanner().scan(new File(args[0]), file -> {
+                    float[] samples = db.getSamples(file);
+                    if (samples != null) {
+                        synchronized (totals) {
+                            compare(db, rec, samples, shortlistSize, clipSeconds, totals);
+                        }
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long queries = totals[0];
+        System.out.printf("queries=%d shortlist=%d recall=%.3f%n", queries, shortlistSize,
+                queries == 0 ? 0.0 : (double) totals[1] / queries);
+        System.out.printf("posting entries read: single tier=%d two tier=%d (%.1f%%)%n", totals[2], totals[4],
+                totals[2] == 0 ? 0.0 : 100.0 * totals[4] / totals[2]);
+        System.out.printf("scoring time per query: single tier=%.3fms two tier=%.3fms%n",
+                queries == 0 ? 0.0 : totals[3] / 1e6 / queries, queries == 0 ? 0.0 : totals[5] / 1e6 / queries);
+    }
+
+    /**
+     * Looks up and scores a hashed clip. The fft and hashing are the same for both paths, so they are left out of the timing.
+     */
+    private static List<SongMatch> score(SongFingerprint rec, Fingerprint clip) {
+        return rec.recognizeBatch(Collections.singletonList(clip), new int[]{1}, new int[]{1}).get(0);
+    }
+
+    /**
+     * Compiles the query paths before anything is timed.
+     */
+    private static void warmUp(SongFingerprint rec) {
+        rec.setEarlyExit(false); // Compare the tiers alone.
+        System.out.println(new Warmup(rec, 5000).run().getReport());
+    }
+
+    /**
+     * Scores a clip REPEATS times, adding the entries one query reads to totals[at] and its fastest time to totals[at + 1].
+     */
+    private static List<SongMatch> time(SongFingerprint rec, Fingerprint clip, long[] totals, int at) {
+        List<SongMatch> matches = null;
+        long fastest = Long.MAX_VALUE;
+        for (int r = 0; r < REPEATS; r++) {
+            rec.resetQueryStats();
+            long start = System.nanoTime();
+            matches = score(rec, clip);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        totals[at] += rec.getPostingsScanned();
+        totals[at + 1] += fastest;
+        return matches;
+    }
+
+    /**
+     * Recognizes a clip from the middle of one song with both paths and adds the outcome to the totals.
+     */
+    private static void compare(SongDatabase db, SongFingerprint rec, float[] samples, int shortlistSize, int clipSeconds,
+                                long[] totals) {
+        int clipLength = Math.min(samples.length, clipSeconds * db.getAnalysisRate());
+        int from = (samples.length - clipLength) / 2;
+        Fingerprint clip = rec.queryFingerprint(Arrays.copyOfRange(samples, from, from + clipLength));
+
+        rec.setShortlistSize(0);
+        List<SongMatch> single = time(rec, clip, totals, 2);
+        rec.setShortlistSize(shortlistSize);
+        List<SongMatch> twoTier = time(rec, clip, totals, 4);
+        rec.setShortlistSize(0);
+
+        totals[0]++;
+        if (single.isEmpty() ? twoTier.isEmpty()
+                : !twoTier.isEmpty() && single.get(0).getSongId() == twoTier.get(0).getSongId()) {
+            totals[1]++;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Runs synthetic audio through the whole recognition path at startup, so the jit has compiled the fft, the key point
+ * search, the resampler and the scoring loop before the first real query arrives. The work happens on a scratch
+ * database configured like the real one: the same analysis rate, frame gate, hasher, shortlist size, speed factors and
+ * early exit. The real catalog is left untouched, while the branches taken, the compiled code and the type profiles
+ * are the ones real queries use. Settings changed after the warmup are not covered.
+ *
+ * Queries are repeated until their latency settles, the median of the last few staying within a few percent of the
+ * one before, or until the time budget runs out.
+ */
+public class Warmup {
+
+    private static final int SONGS = 20;
+    private static final int SONG_SECONDS = 30;
+    private static final int CLIP_SECONDS = 8;
+    private static final int MIN_QUERIES = 40;
+    private static final int WINDOW = 10; // Queries per latency median.
+    private static final double SETTLED = 1.05; // Largest ratio between two consecutive medians that counts as settled.
+
+    private final SongFingerprint recognizer;
+    private final long budgetMillis;
+    private int queries;
+    private double firstLatencyMillis;
+    private double settledLatencyMillis;
+    private double elapsedMillis;
+    private boolean settled;
+
+    /**
+     * Constructor.
+     * @param recognizer recognizer whose code paths to warm up. Its database is only read for settings.
+     * @param budgetMillis longest time to spend warming up
+     */
+    public Warmup(SongFingerprint recognizer, long budgetMillis) {
+        this.recognizer = recognizer;
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * Runs the warmup.
+     * @return this, for reading the results
+     */
+    public Warmup run() {
+        long start = System.nanoTime();
+        long deadline = start + budgetMillis * 1_000_000;
+        SongDatabase live = recognizer.getSongDB();
+        SongDatabase db = new SongDatabase();
+        db.setAnalysisRate(live.getAnalysisRate());
+        FrameGate gate = live.getFrameGate();
+        db.setFrameGate(gate == null ? null : new FrameGate(gate.getFloorDb(), gate.getMaxFlatness())); // Own counters.
+        SongFingerprint scratch = new SongFingerprint(db, recognizer.getHasher());
+        scratch.setShortlistSize(recognizer.getShortlistSize());
+        scratch.setSpeedFactors(recognizer.getSpeedFactors());
+        scratch.setEarlyExit(recognizer.isEarlyExit());
+        db.setFingerprinter(scratch);
+
+        // Ingest through the same decode path as audio files: 16 bit stereo pcm at 44.1 kHz, resampled down.
+        AudioFormat fileFormat = new AudioFormat(44100, 16, 2, true, false);
+        float[][] songs = new float[SONGS][];
+        for (int s = 0; s < SONGS && System.nanoTime() < deadline; s++) {
+            songs[s] = SyntheticAudio.song(s, SONG_SECONDS, 44100);
+            db.addSong("warmup" + s, db.fingerprint(db.convertToSamples(SyntheticAudio.encode(songs[s], fileFormat), fileFormat)));
+        }
+
+        // Query through the same path as recordings: 8 bit mono pcm at 44.1 kHz.
+        Random random = new Random(0);
+        AudioFormat recordingFormat = new AudioFormat(44100, 8, 1, true, true);
+        double[] latencies = new double[WINDOW];
+        double previousMedian = Double.MAX_VALUE;
+        while (System.nanoTime() < deadline && songs[SONGS - 1] != null) {
+            float[] song = songs[random.nextInt(SONGS)];
+            byte[] clip = SyntheticAudio.encode(SyntheticAudio.clip(song, random.nextInt(SONG_SECONDS - CLIP_SECONDS),
+                    CLIP_SECONDS, 44100), recordingFormat);
+            long queryStart = System.nanoTime();
+            scratch.recognizeMatches(clip, queries % 2 == 0 ? 1 : 5, 1); // Both the pruned and the top-k scoring paths.
+            double latency = (System.nanoTime() - queryStart) / 1e6;
+            if (queries == 0) {
+                firstLatencyMillis = latency;
+            }
+            latencies[queries % WINDOW] = latency;
+            queries++;
+            if (queries % WINDOW == 0) {
+                double[] sorted = latencies.clone();
+                Arrays.sort(sorted);
+                double median = sorted[WINDOW / 2];
+                settledLatencyMillis = median;
+                if (queries >= MIN_QUERIES && median <= previousMedian * SETTLED && median >= previousMedian / SETTLED) {
+                    settled = true;
+                    break;
+                }
+                previousMedian = median;
+            }
+        }
+        elapsedMillis = (System.nanoTime() - start) / 1e6;
+        return this;
+    }
+
+    public int getQueries() {
+        return queries;
+    }
+
+    public double getFirstLatencyMillis() {
+        return firstLatencyMillis;
+    }
+
+    public double getSettledLatencyMillis() {
+        return settledLatencyMillis;
+    }
+
+    public double getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Returns whether query latency settled before the time budget ran out.
+     * @return true if settled
+     */
+    public boolean isSettled() {
+        return settled;
+    }
+
+    /**
+     * Returns a one line summary of the warmup.
+     * @return report
+     */
+    public String getReport() {
+        return String.format("Warmup: %d queries in %.0fms, first %.1fms, %s %.1fms", queries, elapsedMillis,
+                firstLatencyMillis, settled ? "settled at" : "budget ran out at", settledLatencyMillis);
+    }
+}
@@ -0,0 +1,85 @@
+package edu.macalester.comp124.audiofingerprinter;
+
+import javax.sound.sampled.AudioFormat;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures time to first good latency in a fresh JVM: a synthetic catalog is loaded the way audio files are, then a
+ * stream of recorded clips is recognized, and the report gives how long after JVM start the first query ran within
+ * 1.5 times the steady state latency. Run it once with and once without warmup to compare, each in its own JVM.
+ */
+public class WarmupBenchmark {
+
+    private static final double GOOD = 1.5; // A query is good within this factor of the steady state latency.
+
+    /**
+     * Runs the benchmark.
+     * @param args warmup or cold (default warmup), and optionally the number of songs (default 100) and queries
+     *             (default 300)
+     */
+    public static void main(String[] args) {
+        boolean warmup = args.length == 0 || !args[0].equals("cold");
+        int songCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int queryCount = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+
+        SongDatabase db = new SongDatabase();
+        SongFingerprint rec = new SongFingerprint(db);
+        db.setFingerprinter(rec);
+        AudioFormat fileFormat = new AudioFormat(44100, 16, 2, true, false);
+        AudioFormat recordingFormat = new AudioFormat(44100, 8, 1, true, true);
+        Random random = new Random(1);
+        byte[][] clips = new byte[queryCount][];
+        int[] expected = new int[queryCount];
+        float[][] songs = new float[songCount][];
+        for (int s = 0; s < songCount; s++) {
+            songs[s] = SyntheticAudio.song(1000 + s, 30, 44100);
+            db.addSong("song" + s, db.fingerprint(db.convertToSamples(SyntheticAudio.encode(songs[s], fileFormat), fileFormat)));
+        }
+        for (int q = 0; q < queryCount; q++) {
+            expected[q] = random.nextInt(songCount);
+            clips[q] = SyntheticAudio.encode(SyntheticAudio.clip(songs[expected[q]], random.nextInt(22), 8, 44100), recordingFormat);
+        }
+        System.out.printf("Catalog of %d songs loaded %.0fms after JVM start%n", songCount, uptimeMillis());
+
+        if (warmup) {
+            System.out.println(new Warmup(rec, 10_000).run().getReport());
+        }
+
+        double queriesStart = uptimeMillis();
+        double[] latencies = new double[queryCount];
+        double[] finishedAt = new double[queryCount];
+        int correct = 0;
+        for (int q = 0; q < queryCount; q++) {
+            long start = System.nanoTime();
+            SongMatch best = rec.recognizeMatches(clips[q], 1, 1).stream().findFirst().orElse(null);
+            latencies[q] = (System.nanoTime() - start) / 1e6;
+            finishedAt[q] = uptimeMillis();
+            if (best != null && best.getSongId() == expected[q]) {
+                correct++;
+            }
+        }
+
+        double[] steady = Arrays.copyOfRange(latencies, queryCount * 3 / 4, queryCount);
+        Arrays.sort(steady);
+        double steadyLatency = steady[steady.length / 2];
+        int firstGood = 0;
+        while (firstGood < queryCount - 1 && latencies[firstGood] > GOOD * steadyLatency) {
+            firstGood++;
+        }
+        double slowTotal = 0;
+        for (int q = 0; q < firstGood; q++) {
+            slowTotal += latencies[q];
+        }
+        System.out.printf("%s: queries started %.0fms after JVM start, accuracy=%.3f%n", warmup ? "warmup" : "cold",
+                queriesStart, (double) correct / queryCount);
+        System.out.printf("first query %.1fms, steady state %.2fms%n", latencies[0], steadyLatency);
+        System.out.printf("first good query: #%d, %.0fms after JVM start, %.0fms spent in slower queries before it%n",
+                firstGood + 1, finishedAt[firstGood], slowTotal);
+    }
+
+    private static double uptimeMillis() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+}